@@ -0,0 +1,104 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+/**
+ * A whole snapshot with each capture engine, against headless Chrome on synthetic
+ * pages of 10,000 to 100,000 elements: `js` runs PercyDOM in the page, `cdp` takes a
+ * DevTools DOMSnapshot and serializes it in the SDK. Uploads go to an in-process
+ * stand-in CLI that drops them.
+ *
+ * Opt-in, since it needs Chrome and a chromedriver, Selenium 4 for the `cdp` engine
+ * (`-Dselenium.version`), and PercyDOM's bundle from `@percy/dom` (`PERCY_DOM_JS`).
+ * See the README.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g", "-Dsun.net.httpserver.nodelay=true" })
+public class CaptureEngineBenchmark {
+    @Param({ "10000", "50000", "100000" })
+    public int elements;
+
+    @Param({ "js", "cdp" })
+    public String engine;
+
+    private StubCli cli;
+    private Path cacheDir;
+    private WebDriver driver;
+    private Percy percy;
+
+    @Setup
+    public void setup() throws IOException {
+        // From the environment, which reaches the JMH fork through Maven
+        String domJsPath = System.getenv("PERCY_DOM_JS");
+        if (domJsPath == null) { throw new IllegalStateException("Set PERCY_DOM_JS to @percy/dom's dist/bundle.js"); }
+        String domJs = new String(Files.readAllBytes(Paths.get(domJsPath)), StandardCharsets.UTF_8);
+        String page = SyntheticDom.page(elements);
+
+        cli = new StubCli()
+            .handle("/percy/dom.js", exchange -> StubCli.respond(exchange, 200, domJs))
+            .handle("/percy/snapshot", exchange -> {
+                StubCli.discardBody(exchange);
+                StubCli.succeed(exchange);
+            })
+            .handle("/benchmark", exchange -> {
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+                StubCli.respond(exchange, 200, page);
+            })
+            .start();
+        // Where dom.js is cached, instead of the user's cache directory
+        cacheDir = Files.createTempDirectory("percy-benchmark");
+        DomScriptCache.useDirectory(cacheDir);
+
+        driver = new ChromeDriver(new ChromeOptions().addArguments("--headless=new", "--window-size=1280,1024"));
+        driver.get(cli.address() + "/benchmark");
+        if (engine.equals("cdp") && !Selenium4Adapter.canUseDevTools(driver)) {
+            throw new IllegalStateException("The cdp engine needs Selenium 4; set selenium.version");
+        }
+
+        System.setProperty("percy.captureEngine", engine);
+        percy = new Percy(driver, cli.address(), null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (percy != null) { percy.close(); }
+        if (driver != null) { driver.quit(); }
+        if (cli != null) { cli.stop(); }
+        System.clearProperty("percy.captureEngine");
+        DomScriptCache.useDirectory(null);
+        if (cacheDir != null) {
+            for (String file : cacheDir.toFile().list()) { Files.deleteIfExists(cacheDir.resolve(file)); }
+            Files.deleteIfExists(cacheDir);
+        }
+    }
+
+    @Benchmark
+    public void snapshot() {
+        percy.snapshot("Capture engine benchmark");
+    }
+}
@@ -0,0 +1,45 @@
+package io.percy.selenium;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the `cdp` capture engine adds on the SDK's side: turning a DOMSnapshot of a
+ * large synthetic page into the HTML PercyDOM would return. The browser's side
+ * (PercyDOM against `DOMSnapshot.captureSnapshot`) needs a real Chrome, so time it
+ * there with a `SnapshotListener`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class DomSnapshotConversionBenchmark {
+    @Param({ "10000", "50000", "100000" })
+    public int nodes;
+
+    private Map<String, Object> domSnapshot;
+
+    @Setup
+    public void setup() {
+        domSnapshot = SyntheticDom.domSnapshot(nodes);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return DomSnapshotSerializer.serialize(domSnapshot);
+    }
+}
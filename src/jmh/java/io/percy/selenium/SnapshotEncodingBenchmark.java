@@ -0,0 +1,70 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a snapshot request body, without any network, across DOM sizes from
+ * 10 KB to 50 MB. Run with `-prof gc` (the profile's default) for allocations per op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class SnapshotEncodingBenchmark {
+    @Param({ "10240", "1048576", "10485760", "52428800" })
+    public int domSize;
+
+    private SnapshotPayload payload;
+
+    @Setup
+    public void setup() {
+        payload = SyntheticDom.payload(SyntheticDom.ofSize(domSize));
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        CountingSink sink = new CountingSink();
+        payload.writeTo(sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long encodeGzip() throws IOException {
+        CountingSink sink = new CountingSink();
+        try (OutputStream gzip = new PooledGzipOutputStream(sink)) {
+            payload.writeTo(gzip);
+        }
+        return sink.count;
+    }
+
+    // Discards everything written, so only encoding is measured
+    private static class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
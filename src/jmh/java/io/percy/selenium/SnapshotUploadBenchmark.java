@@ -0,0 +1,102 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uploading a snapshot to an in-process stand-in CLI through each transport, the
+ * same way `SnapshotUploader.post` does, across DOM sizes from 10 KB to 50 MB. The
+ * `memory` transport skips the network, so it shows the cost of encoding alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// The stand-in CLI answers without Nagle's delay, as the real one (Node) does
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g", "-Dsun.net.httpserver.nodelay=true" })
+public class SnapshotUploadBenchmark {
+    // Drains request bodies sent to the memory transport
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    @Param({ "10240", "1048576", "10485760", "52428800" })
+    public int domSize;
+
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    @Param({ "apache", "jdk", "jdk11", "memory" })
+    public String transport;
+
+    private StubCli server;
+    private ExecutorService serverExecutor;
+    private PercyTransport client;
+    private String address;
+    private SnapshotPayload payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        payload = SyntheticDom.payload(SyntheticDom.ofSize(domSize));
+
+        if (transport.equals("memory")) {
+            client = new MemoryTransport();
+            address = MemoryTransport.bind("benchmark", request -> {
+                if (request.getBody() != null) { request.getBody().writeTo(DISCARD); }
+                return new TransportResponse(200, Collections.emptyMap(), "{\"success\":true}");
+            });
+            return;
+        }
+
+        // Looked up by name, since `jdk11` is only built (and loadable) on Java 11+
+        client = Transports.named(transport);
+        if (client == null) { throw new IllegalStateException("Transport " + transport + " is not available"); }
+
+        // Bodies are read and dropped, so only the SDK side of an upload is measured
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server = new StubCli().handle("/percy/snapshot", exchange -> {
+            StubCli.discardBody(exchange);
+            StubCli.succeed(exchange);
+        }).executor(serverExecutor).start();
+        address = server.address();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+            serverExecutor.shutdownNow();
+        }
+        MemoryTransport.unbind("benchmark");
+    }
+
+    @Benchmark
+    public int upload() throws IOException {
+        RequestBody body = gzip ? new GzipBody(payload) : payload;
+
+        return client.postSnapshot(address, body).getStatusCode();
+    }
+}
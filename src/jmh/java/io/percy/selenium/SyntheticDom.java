@@ -0,0 +1,122 @@
+package io.percy.selenium;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds serialized DOM strings of a given size for benchmarks, with the mix of
+ * markup, quotes, newlines and non-ASCII text that real pages have.
+ */
+class SyntheticDom {
+    private static final String CHUNK =
+        "<div class=\"todo-item\" data-id=\"42\">\n" +
+        "  <input type=\"checkbox\" checked> <label>Buy milk & eggs – café</label>\n" +
+        "  <script>window.items.push({\"id\": 42, \"done\": true});</script>\n" +
+        "</div>\n";
+
+    private SyntheticDom() {}
+
+    /**
+     * @param chars The length of the DOM to build.
+     */
+    static String ofSize(int chars) {
+        StringBuilder dom = new StringBuilder(chars);
+        dom.append("<!DOCTYPE html><html><head><title>Benchmark</title></head><body>");
+        while (dom.length() < chars - 14) {
+            dom.append(CHUNK, 0, Math.min(CHUNK.length(), chars - 14 - dom.length()));
+        }
+        dom.append("</body></html>");
+
+        return dom.toString();
+    }
+
+    /**
+     * A page for a browser to load, of the same items as `ofSize`.
+     *
+     * @param elements The number of elements in the page, roughly.
+     */
+    static String page(int elements) {
+        StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>Benchmark</title>"
+            + "<script>window.items = [];</script></head><body>");
+        // Each item is four elements
+        for (int i = 0; i < elements / 4; i++) { page.append(CHUNK); }
+        page.append("</body></html>");
+
+        return page.toString();
+    }
+
+    /**
+     * A `DOMSnapshot.captureSnapshot` result for a page of the same items as
+     * `ofSize`, as Selenium decodes it: maps, lists and longs.
+     *
+     * @param count The number of nodes in the page, roughly.
+     */
+    static Map<String, Object> domSnapshot(int count) {
+        List<String> strings = new ArrayList<>(Arrays.asList("http://localhost/benchmark", "#document", "html",
+            "HTML", "HEAD", "BODY", "DIV", "class", "todo-item", "data-id", "42", "#text", "\n  ", "INPUT", "type",
+            "checkbox", "checked", "", " ", "LABEL", "Buy milk & eggs – café", "SCRIPT",
+            "window.items.push({\"id\": 42, \"done\": true});", "\n"));
+        List<Long> parents = new ArrayList<>();
+        List<Long> types = new ArrayList<>();
+        List<Long> names = new ArrayList<>();
+        List<Long> values = new ArrayList<>();
+        List<List<Long>> attributes = new ArrayList<>();
+
+        long document = node(parents, types, names, values, attributes, -1, 9, 1, -1);
+        node(parents, types, names, values, attributes, document, 10, 2, -1);
+        long html = node(parents, types, names, values, attributes, document, 1, 3, -1);
+        node(parents, types, names, values, attributes, html, 1, 4, -1);
+        long body = node(parents, types, names, values, attributes, html, 1, 5, -1);
+        List<Long> checkboxes = new ArrayList<>();
+        while (parents.size() < count) {
+            long div = node(parents, types, names, values, attributes, body, 1, 6, -1, 7, 8, 9, 10);
+            node(parents, types, names, values, attributes, div, 3, 11, 12);
+            checkboxes.add(node(parents, types, names, values, attributes, div, 1, 13, -1, 14, 15, 16, 17));
+            node(parents, types, names, values, attributes, div, 3, 11, 18);
+            long label = node(parents, types, names, values, attributes, div, 1, 19, -1);
+            node(parents, types, names, values, attributes, label, 3, 11, 20);
+            node(parents, types, names, values, attributes, div, 3, 11, 12);
+            long script = node(parents, types, names, values, attributes, div, 1, 21, -1);
+            node(parents, types, names, values, attributes, script, 3, 11, 22);
+            node(parents, types, names, values, attributes, div, 3, 11, 23);
+        }
+
+        Map<String, Object> nodes = new HashMap<>();
+        nodes.put("parentIndex", parents);
+        nodes.put("nodeType", types);
+        nodes.put("nodeName", names);
+        nodes.put("nodeValue", values);
+        nodes.put("attributes", attributes);
+        nodes.put("inputChecked", Collections.singletonMap("index", checkboxes));
+        Map<String, Object> page = new HashMap<>();
+        page.put("documentURL", 0L);
+        page.put("nodes", nodes);
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("documents", Collections.singletonList(page));
+        snapshot.put("strings", strings);
+
+        return snapshot;
+    }
+
+    private static long node(List<Long> parents, List<Long> types, List<Long> names, List<Long> values,
+                             List<List<Long>> attributes, long parent, long type, long name, long value, long... attributePairs) {
+        parents.add(parent);
+        types.add(type);
+        names.add(name);
+        values.add(value);
+        List<Long> pairs = new ArrayList<>(attributePairs.length);
+        for (long string : attributePairs) { pairs.add(string); }
+        attributes.add(pairs);
+
+        return parents.size() - 1;
+    }
+
+    static SnapshotPayload payload(String dom) {
+        return new SnapshotPayload("Benchmark snapshot", "http://localhost/benchmark", dom, null, null,
+            false, null, "percy-java-selenium/benchmark", "selenium-java; benchmark");
+    }
+}
@@ -0,0 +1,137 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Transport for `http://` and `https://` CLI addresses, using the pooled Apache
+ * HttpClient shared by the JVM (see `PercyHttpClient`). This is the default.
+ */
+public final class ApacheHttpTransport implements PercyTransport {
+    public ApacheHttpTransport() {
+        // Fail here rather than on the first request when HttpClient isn't on the
+        // classpath, so the transport is skipped and another one is used
+        HttpUriRequest.class.getName();
+    }
+
+    @Override
+    public String name() {
+        return "apache";
+    }
+
+    @Override
+    public boolean supports(String serverAddress) {
+        return serverAddress.startsWith("http://") || serverAddress.startsWith("https://");
+    }
+
+    @Override
+    public TransportResponse healthcheck(String serverAddress, int timeoutMillis) throws IOException {
+        HttpGet request = new HttpGet(serverAddress + "/percy/healthcheck");
+        request.setConfig(RequestConfig.custom()
+            .setConnectTimeout(timeoutMillis)
+            .setConnectionRequestTimeout(timeoutMillis)
+            .setSocketTimeout(timeoutMillis)
+            .build());
+
+        return execute(request);
+    }
+
+    @Override
+    public TransportResponse fetchDomScript(String serverAddress, @Nullable String etag) throws IOException {
+        HttpGet request = new HttpGet(serverAddress + "/percy/dom.js");
+        if (etag != null) { request.setHeader("If-None-Match", etag); }
+
+        return execute(request);
+    }
+
+    @Override
+    public TransportResponse postSnapshot(String serverAddress, RequestBody body) throws IOException {
+        HttpPost request = new HttpPost(serverAddress + "/percy/snapshot");
+        request.setEntity(new BodyEntity(body));
+
+        return execute(request);
+    }
+
+    @Override
+    public TransportResponse postBatch(String serverAddress, RequestBody body) throws IOException {
+        return postSnapshot(serverAddress, body);
+    }
+
+    private static TransportResponse execute(HttpUriRequest request) throws IOException {
+        try (CloseableHttpResponse response = PercyHttpClient.get().execute(request)) {
+            Map<String, String> headers = new HashMap<>();
+            for (Header header : response.getAllHeaders()) {
+                headers.putIfAbsent(header.getName(), header.getValue());
+            }
+
+            // Reading the body to the end releases the connection back to the shared pool
+            HttpEntity entity = response.getEntity();
+            String body = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : null;
+
+            return new TransportResponse(response.getStatusLine().getStatusCode(), headers, body);
+        }
+    }
+
+    /**
+     * Entity that streams a `RequestBody` to the connection as it is encoded.
+     */
+    private static class BodyEntity extends AbstractHttpEntity {
+        private final RequestBody body;
+
+        BodyEntity(RequestBody body) {
+            this.body = body;
+            setContentType(body.contentType());
+            setContentEncoding(body.contentEncoding());
+            setChunked(body.contentLength() < 0);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.contentLength();
+        }
+
+        /**
+         * Materializes the whole body. Only for callers that insist on reading the
+         * entity; sending it uses `writeTo`.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            body.writeTo(buffer);
+            return new ByteArrayInputStream(buffer.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            body.writeTo(outStream);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
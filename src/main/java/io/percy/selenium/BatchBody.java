@@ -0,0 +1,79 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private request body carrying several snapshots in one `POST`, each
+ * written in turn by its own body, so the batch is streamed like a single snapshot.
+ */
+class BatchBody implements RequestBody {
+    /**
+     * How the snapshots are laid out, as named in the CLI's `x-percy-batch`
+     * healthcheck header.
+     */
+    enum Format {
+        // A JSON array of snapshots
+        JSON("json", "application/json"),
+        // One snapshot per line
+        NDJSON("ndjson", "application/x-ndjson");
+
+        final String token;
+        final String contentType;
+
+        Format(String token, String contentType) {
+            this.token = token;
+            this.contentType = contentType;
+        }
+
+        /**
+         * @param advertised The `x-percy-batch` header value, e.g. `json, ndjson`.
+         * @return `preferred` if the CLI accepts it, else the first format it
+         *         accepts that we know, or null if it accepts none.
+         */
+        @Nullable
+        static Format choose(@Nullable String advertised, Format preferred) {
+            if (advertised == null) { return null; }
+
+            Format first = null;
+            for (String token : advertised.split(",")) {
+                for (Format format : values()) {
+                    if (!format.token.equalsIgnoreCase(token.trim())) { continue; }
+                    if (format == preferred) { return format; }
+                    if (first == null) { first = format; }
+                }
+            }
+
+            return first;
+        }
+    }
+
+    private final List<? extends RequestBody> snapshots;
+    private final Format format;
+
+    BatchBody(List<? extends RequestBody> snapshots, Format format) {
+        this.snapshots = snapshots;
+        this.format = format;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (format == Format.JSON) { out.write('['); }
+
+        for (int i = 0; i < snapshots.size(); i++) {
+            if (i > 0 && format == Format.JSON) { out.write(','); }
+            snapshots.get(i).writeTo(out);
+            if (format == Format.NDJSON) { out.write('\n'); }
+        }
+
+        if (format == Format.JSON) { out.write(']'); }
+    }
+
+    @Override
+    public String contentType() {
+        return format.contentType;
+    }
+}
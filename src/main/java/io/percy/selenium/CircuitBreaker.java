@@ -0,0 +1,123 @@
+package io.percy.selenium;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Package-private circuit breaker for uploads to one CLI address, shared by every
+ * Percy instance in the JVM.
+ *
+ * After `PERCY_CIRCUIT_FAILURES` consecutive failed uploads the circuit opens and
+ * uploads are refused for `PERCY_CIRCUIT_OPEN_TIME` milliseconds, giving an
+ * overloaded CLI room to recover. Then a single trial upload is let through: if it
+ * succeeds the circuit closes again, otherwise it stays open for another period.
+ */
+class CircuitBreaker {
+    // Consecutive failures that open the circuit
+    private static final int FAILURE_THRESHOLD = Integer.parseInt(System.getenv().getOrDefault("PERCY_CIRCUIT_FAILURES", "5"));
+
+    // How long the circuit stays open, in milliseconds
+    private static final long OPEN_TIME = Long.parseLong(System.getenv().getOrDefault("PERCY_CIRCUIT_OPEN_TIME", "10000"));
+
+    // One breaker per CLI address
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    // Runs tasks waiting for a circuit to half-open; shared by every breaker
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "percy-circuit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    enum State {
+        // Uploads go through
+        CLOSED,
+        // Uploads are refused until `OPEN_TIME` has passed
+        OPEN,
+        // One trial upload decides whether to close or reopen
+        HALF_OPEN
+    }
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean isTrialRunning;
+
+    private CircuitBreaker() {}
+
+    static CircuitBreaker forAddress(String serverAddress) {
+        return BREAKERS.computeIfAbsent(serverAddress, address -> new CircuitBreaker());
+    }
+
+    /**
+     * @return true if an upload may be sent now. The caller must then report the
+     *         outcome with `recordSuccess` or `recordFailure`.
+     */
+    synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= TimeUnit.MILLISECONDS.toNanos(OPEN_TIME)) {
+            state = State.HALF_OPEN;
+            isTrialRunning = false;
+        }
+
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (isTrialRunning) { return false; }
+                isTrialRunning = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return Milliseconds until the open circuit half-opens (0 if it is due), or
+     *         -1 if the circuit isn't open.
+     */
+    synchronized long millisUntilHalfOpen() {
+        if (state != State.OPEN) { return -1; }
+
+        long openNanos = System.nanoTime() - openedAt;
+        return Math.max(0, OPEN_TIME - TimeUnit.NANOSECONDS.toMillis(openNanos));
+    }
+
+    /**
+     * Run `task` on a shared timer thread once the open circuit half-opens, e.g. to
+     * retry uploads that were refused meanwhile. It should only queue work.
+     *
+     * @return false if the circuit isn't open, in which case nothing is scheduled.
+     */
+    boolean whenHalfOpen(Runnable task) {
+        long delay = millisUntilHalfOpen();
+        if (delay < 0) { return false; }
+
+        TIMER.schedule(task, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        isTrialRunning = false;
+    }
+
+    /**
+     * @return true if this failure opened the circuit.
+     */
+    synchronized boolean recordFailure() {
+        isTrialRunning = false;
+
+        if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= FAILURE_THRESHOLD)) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            failures = 0;
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,196 @@
+package io.percy.selenium;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private JVM-wide healthcheck of the Percy CLI.
+ *
+ * There is one probe per CLI address, run in the background and shared by every
+ * Percy instance. Its result is reused until it is older than
+ * `PERCY_HEALTHCHECK_TTL` milliseconds, so creating many Percy instances costs at
+ * most one request per TTL.
+ *
+ * When the CLI isn't running, Percy instances ask for a `retry`. Retries are shared
+ * the same way and back off exponentially, so a CLI that starts late is picked up
+ * without every instance polling it.
+ */
+class CliHealthcheck {
+    // How long a probe result is reused, in milliseconds
+    private static final long TTL = Long.parseLong(System.getenv().getOrDefault("PERCY_HEALTHCHECK_TTL", "30000"));
+
+    // Hard deadline for connecting to and hearing back from the CLI, in milliseconds
+    private static final int TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_HEALTHCHECK_TIMEOUT", "2000"));
+
+    // Delay before the first retry, doubled for each retry after that, in milliseconds
+    private static final long RETRY_INTERVAL = Long.parseLong(System.getenv().getOrDefault("PERCY_HEALTHCHECK_RETRY_INTERVAL", "1000"));
+
+    // Longest delay between retries, in milliseconds
+    private static final long RETRY_MAX_INTERVAL = Long.parseLong(System.getenv().getOrDefault("PERCY_HEALTHCHECK_RETRY_MAX_INTERVAL", "60000"));
+
+    // Retries after a failed probe before giving up
+    private static final int RETRIES = Integer.parseInt(System.getenv().getOrDefault("PERCY_HEALTHCHECK_RETRIES", "8"));
+
+    // Probes by CLI address
+    private static final Map<String, Probe> PROBES = new ConcurrentHashMap<>();
+
+    // Daemon threads, so a probe never keeps the JVM alive
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "percy-healthcheck");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Waits out the backoff before a retry is handed to `EXECUTOR`
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "percy-healthcheck-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    enum Status {
+        // The CLI is running and supported
+        RUNNING,
+        // The CLI could not be reached or did not answer successfully
+        NOT_RUNNING,
+        // Something answered, but it isn't a CLI this SDK supports
+        UNSUPPORTED
+    }
+
+    static final class Result {
+        final Status status;
+        @Nullable final String coreVersion;
+        // Batch formats the CLI accepts, from its `x-percy-batch` header; null if it
+        // only takes single snapshots
+        @Nullable final String batchFormats;
+        @Nullable final Exception error;
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        Result(Status status, @Nullable String coreVersion, @Nullable Exception error) {
+            this(status, coreVersion, null, error);
+        }
+
+        Result(Status status, @Nullable String coreVersion, @Nullable String batchFormats, @Nullable Exception error) {
+            this.status = status;
+            this.coreVersion = coreVersion;
+            this.batchFormats = batchFormats;
+            this.error = error;
+        }
+
+        /**
+         * @return true for the first caller only, so a result shared by many Percy
+         *         instances is logged once.
+         */
+        boolean claimReport() {
+            return reported.compareAndSet(false, true);
+        }
+    }
+
+    private static final class Probe {
+        final CompletableFuture<Result> result;
+        // The failed probe this one retries, or null for a first probe
+        @Nullable final CompletableFuture<Result> retrying;
+        // 0 for a first probe, then 1, 2, ... for consecutive retries
+        final int attempt;
+        final long startedAt = System.nanoTime();
+
+        Probe(String serverAddress, int attempt, @Nullable CompletableFuture<Result> retrying) {
+            this.attempt = attempt;
+            this.retrying = retrying;
+
+            if (attempt == 0) {
+                result = CompletableFuture.supplyAsync(() -> check(serverAddress), EXECUTOR);
+            } else {
+                result = new CompletableFuture<>();
+                SCHEDULER.schedule(() -> EXECUTOR.execute(() -> result.complete(check(serverAddress))),
+                    backoff(attempt), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        boolean isExpired() {
+            return result.isDone() && System.nanoTime() - startedAt > TimeUnit.MILLISECONDS.toNanos(TTL);
+        }
+    }
+
+    private CliHealthcheck() {}
+
+    /**
+     * Start a probe of the CLI at `serverAddress`, unless a recent one exists.
+     * Never blocks. While a retry is waiting out its backoff, this returns the
+     * failed probe being retried.
+     */
+    static CompletableFuture<Result> probe(String serverAddress) {
+        Probe probe = PROBES.compute(serverAddress, (address, current) ->
+            current != null && !current.isExpired() ? current : new Probe(address, 0, null));
+
+        return probe.retrying != null && !probe.result.isDone() ? probe.retrying : probe.result;
+    }
+
+    /**
+     * Schedule another probe of the CLI after `failed`, which has completed, unless
+     * one is already scheduled. Never blocks.
+     *
+     * @return The retry, or null once `PERCY_HEALTHCHECK_RETRIES` consecutive
+     *         retries have failed.
+     */
+    @Nullable
+    static CompletableFuture<Result> retry(String serverAddress, CompletableFuture<Result> failed) {
+        Probe probe = PROBES.compute(serverAddress, (address, current) -> {
+            // Someone else already retried `failed`, or a newer probe replaced it
+            if (current != null && current.result != failed) { return current; }
+
+            // A failure after the CLI was running starts a new round of backoff
+            Result last = failed.getNow(null);
+            int attempt = current == null || (last != null && last.status == Status.RUNNING) ? 1 : current.attempt + 1;
+
+            return attempt <= RETRIES ? new Probe(address, attempt, failed) : current;
+        });
+
+        return probe != null && probe.result != failed ? probe.result : null;
+    }
+
+    private static long backoff(int attempt) {
+        return Math.min(RETRY_MAX_INTERVAL, RETRY_INTERVAL << Math.min(attempt - 1, 30));
+    }
+
+    private static Result check(String serverAddress) {
+        try {
+            TransportResponse response = Transports.forAddress(serverAddress).healthcheck(serverAddress, TIMEOUT);
+            int statusCode = response.getStatusCode();
+
+            if (statusCode != 200){
+                throw new RuntimeException("Failed with HTTP error code : " + statusCode);
+            }
+
+            String version = response.getHeader("x-percy-core-version");
+
+            if (version == null) {
+                PercyLog.log("You may be using @percy/agent" +
+                    "which is no longer supported by this SDK." +
+                    "Please uninstall @percy/agent and install @percy/cli instead." +
+                    "https://docs.percy.io/docs/migrating-to-percy-cli"
+                    );
+
+                return new Result(Status.UNSUPPORTED, null, null);
+            }
+
+            if (!version.split("\\.")[0].equals("1")) {
+                PercyLog.log("Unsupported Percy CLI version, " + version);
+
+                return new Result(Status.UNSUPPORTED, version, null);
+            }
+
+            return new Result(Status.RUNNING, version, response.getHeader("x-percy-batch"), null);
+        } catch (Exception ex) {
+            return new Result(Status.NOT_RUNNING, null, ex);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package io.percy.selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private JVM-wide cache of the CLI's dom.js, backed by a directory on disk.
+ *
+ * Scripts are keyed by the CLI core version from the healthcheck. The first lookup
+ * in a JVM revalidates the disk copy with `If-None-Match`, so only the first fork
+ * on a machine downloads the script; later lookups are served from memory. When
+ * the CLI can't be reached, the disk copy is used as is.
+ *
+ * The directory is only readable by the user, and each script is stored with its
+ * SHA-256; a script that doesn't match it is never used.
+ */
+class DomScriptCache {
+    // Directory shared by every JVM the user runs
+    private static final Path DEFAULT_CACHE_DIR = Paths.get(System.getenv().getOrDefault("PERCY_CACHE_DIR",
+        System.getProperty("user.home") + File.separator + ".cache" + File.separator + "percy-java-selenium"));
+
+    // Whether files have owners and POSIX permissions, as on Linux and macOS
+    private static final boolean IS_POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private static volatile Path cacheDir = DEFAULT_CACHE_DIR;
+
+    // Used as the key when the CLI didn't report its version
+    private static final String UNKNOWN_VERSION = "unknown";
+
+    // Scripts already loaded in this JVM, by core version
+    private static final Map<String, String> SCRIPTS = new ConcurrentHashMap<>();
+
+    // SHA-256 of each script, computed once per script
+    private static final Map<String, String> HASHES = new ConcurrentHashMap<>();
+
+    private DomScriptCache() {}
+
+    /**
+     * Cache scripts in another directory, starting with nothing in memory, e.g. so
+     * tests don't share scripts with each other or with real runs.
+     *
+     * @param directory The directory, or null for the default.
+     */
+    static void useDirectory(@Nullable Path directory) {
+        cacheDir = directory != null ? directory : DEFAULT_CACHE_DIR;
+        SCRIPTS.clear();
+    }
+
+    /**
+     * @param serverAddress The CLI address.
+     * @param coreVersion   The CLI core version, or null if unknown.
+     * @return dom.js for this CLI version.
+     * @throws IOException If the script is neither cached nor downloadable.
+     */
+    static String get(String serverAddress, @Nullable String coreVersion) throws IOException {
+        String key = cacheKey(coreVersion);
+        String script = SCRIPTS.get(key);
+        if (script != null) { return script; }
+
+        script = load(serverAddress, key);
+        SCRIPTS.putIfAbsent(key, script);
+
+        return SCRIPTS.get(key);
+    }
+
+    /**
+     * @param script A dom.js returned by `get`.
+     * @return The script's SHA-256, in hex, which identifies it wherever it is
+     *         stored, e.g. in the browser.
+     */
+    static String hash(String script) {
+        return HASHES.computeIfAbsent(script, DomScriptCache::sha256);
+    }
+
+    /**
+     * @return true if a dom.js for this version (or, when the version is unknown,
+     *         any version) is cached in memory or on disk.
+     */
+    static boolean contains(@Nullable String coreVersion) {
+        String key = cacheKey(coreVersion);
+        if (SCRIPTS.containsKey(key) || readVerified(scriptFile(key)) != null) { return true; }
+
+        return key.equals(UNKNOWN_VERSION) && newestScript() != null;
+    }
+
+    private static String load(String serverAddress, String key) throws IOException {
+        Path scriptFile = scriptFile(key);
+        Path etagFile = scriptFile.resolveSibling("dom-" + key + ".etag");
+        String cached = readVerified(scriptFile);
+
+        String etag = cached != null && Files.isReadable(etagFile) ? read(etagFile) : null;
+
+        try {
+            TransportResponse response = Transports.forAddress(serverAddress).fetchDomScript(serverAddress, etag);
+            int statusCode = response.getStatusCode();
+
+            if (statusCode == 304 && cached != null) {
+                return cached;
+            }
+
+            if (statusCode != 200 || response.getBody() == null) {
+                if (cached != null) { return cached; }
+
+                throw new IOException("Failed with HTTP error code: " + statusCode);
+            }
+
+            String script = response.getBody();
+            store(scriptFile, etagFile, script, response.getHeader("ETag"));
+
+            return script;
+        } catch (IOException ex) {
+            // The CLI is unreachable; fall back to what's on disk
+            String fallback = cached != null ? cached : (key.equals(UNKNOWN_VERSION) ? newestScript() : null);
+            if (fallback == null) { throw ex; }
+
+            return fallback;
+        }
+    }
+
+    /**
+     * Write through temporary files and move them into place, so concurrent forks
+     * never read a partially written script.
+     */
+    private static void store(Path scriptFile, Path etagFile, String script, @Nullable String etag) {
+        try {
+            if (IS_POSIX) {
+                Files.createDirectories(scriptFile.getParent(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(scriptFile.getParent());
+            }
+            if (!isPrivate(scriptFile.getParent())) { return; }
+
+            if (etag != null) {
+                replace(etagFile, etag);
+            } else {
+                Files.deleteIfExists(etagFile);
+            }
+            replace(scriptFile, script);
+            replace(hashFile(scriptFile), hash(script));
+        } catch (IOException ex) {
+            // The cache is only an optimization; the script was still downloaded
+        }
+    }
+
+    private static void replace(Path file, String contents) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        Files.write(temp, contents.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The script in `scriptFile`, or null if it isn't there, doesn't match
+     *         the SHA-256 stored with it, or others could have changed it.
+     */
+    @Nullable
+    private static String readVerified(Path scriptFile) {
+        try {
+            if (!Files.isReadable(scriptFile) || !isPrivate(scriptFile.getParent())) { return null; }
+
+            String script = read(scriptFile);
+            return hash(script).equals(read(hashFile(scriptFile)).trim()) ? script : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    // Whether only the user can write to the directory, where that can be told
+    private static boolean isPrivate(Path directory) throws IOException {
+        if (!IS_POSIX) { return true; }
+
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+        return Files.getOwner(directory).getName().equals(System.getProperty("user.name"))
+            && !permissions.contains(PosixFilePermission.GROUP_WRITE)
+            && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+    }
+
+    private static String sha256(String script) {
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String cacheKey(@Nullable String coreVersion) {
+        return coreVersion == null ? UNKNOWN_VERSION : coreVersion.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+    private static Path scriptFile(String key) {
+        return cacheDir.resolve("dom-" + key + ".js");
+    }
+
+    private static Path hashFile(Path scriptFile) {
+        String name = scriptFile.getFileName().toString();
+        return scriptFile.resolveSibling(name.substring(0, name.length() - ".js".length()) + ".sha256");
+    }
+
+    // The most recently stored script that can be used, of any version
+    @Nullable
+    private static String newestScript() {
+        File[] scripts = cacheDir.toFile().listFiles((dir, name) -> name.startsWith("dom-") && name.endsWith(".js"));
+        if (scripts == null) { return null; }
+
+        Arrays.sort(scripts, Comparator.comparingLong(File::lastModified).reversed());
+        for (File script : scripts) {
+            String verified = readVerified(script.toPath());
+            if (verified != null) { return verified; }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,364 @@
+package io.percy.selenium;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private conversion of a DevTools `DOMSnapshot.captureSnapshot` result
+ * into the HTML `PercyDOM.serialize` returns: a doctype and the document element's
+ * outer HTML, with the current state of form fields written into the markup and
+ * same-origin frames inlined as `srcdoc`.
+ *
+ * Pages with canvases (which PercyDOM turns into images), shadow roots or `<style>`
+ * elements without text (whose rules were added through the CSSOM, which PercyDOM
+ * writes out) can't be reproduced from the snapshot, so they give null and should
+ * be captured with PercyDOM instead.
+ */
+class DomSnapshotSerializer {
+    private static final int ELEMENT_NODE = 1;
+    private static final int TEXT_NODE = 3;
+    private static final int CDATA_SECTION_NODE = 4;
+    private static final int COMMENT_NODE = 8;
+    private static final int DOCUMENT_TYPE_NODE = 10;
+    private static final int DOCUMENT_FRAGMENT_NODE = 11;
+
+    private static final Set<String> VOID_ELEMENTS = new HashSet<>(Arrays.asList("area", "base", "br", "col",
+        "embed", "hr", "img", "input", "keygen", "link", "meta", "param", "source", "track", "wbr"));
+
+    // Elements whose text is serialized without escaping
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<>(Arrays.asList("iframe", "noembed",
+        "noframes", "noscript", "plaintext", "script", "style", "xmp"));
+
+    private final List<?> documents;
+    private final List<?> strings;
+
+    private DomSnapshotSerializer(List<?> documents, List<?> strings) {
+        this.documents = documents;
+        this.strings = strings;
+    }
+
+    /**
+     * @param snapshot The `DOMSnapshot.captureSnapshot` result.
+     * @return The serialized page, or null if it needs PercyDOM.
+     */
+    @Nullable
+    static String serialize(Map<?, ?> snapshot) {
+        List<?> documents = (List<?>) snapshot.get("documents");
+        List<?> strings = (List<?>) snapshot.get("strings");
+        if (documents == null || documents.isEmpty() || strings == null) { return null; }
+
+        return new DomSnapshotSerializer(documents, strings).serializeDocument(0);
+    }
+
+    /**
+     * @return The URL of the snapshot's top document.
+     */
+    @Nullable
+    static String url(Map<?, ?> snapshot) {
+        List<?> documents = (List<?>) snapshot.get("documents");
+        List<?> strings = (List<?>) snapshot.get("strings");
+        if (documents == null || documents.isEmpty() || strings == null) { return null; }
+
+        return new DomSnapshotSerializer(documents, strings).string(((Map<?, ?>) documents.get(0)).get("documentURL"));
+    }
+
+    @Nullable
+    private String serializeDocument(int index) {
+        Map<?, ?> document = (Map<?, ?>) documents.get(index);
+        Nodes nodes = new Nodes((Map<?, ?>) document.get("nodes"));
+        StringBuilder html = new StringBuilder();
+
+        // As PercyDOM writes it, whether or not the page has a doctype
+        String name = "html";
+        int root = -1;
+        for (int child = nodes.firstChild[0]; child != -1; child = nodes.nextSibling[child]) {
+            if (nodes.type[child] == DOCUMENT_TYPE_NODE) { name = string(nodes.name[child]); }
+            if (nodes.type[child] == ELEMENT_NODE) { root = child; }
+        }
+        String publicId = string(document.get("publicId"));
+        String systemId = string(document.get("systemId"));
+        html.append("<!DOCTYPE ").append(name);
+        if (!publicId.isEmpty()) {
+            html.append(" PUBLIC \"").append(publicId).append('"');
+            if (!systemId.isEmpty()) { html.append(" \"").append(systemId).append('"'); }
+        } else if (!systemId.isEmpty()) {
+            html.append(" SYSTEM \"").append(systemId).append('"');
+        }
+        html.append('>');
+
+        if (root != -1 && !serializeElement(html, nodes, root, string(document.get("documentURL")))) { return null; }
+
+        return html.toString();
+    }
+
+    /**
+     * Append an element and its subtree, without recursing, since pages can nest
+     * deeper than the Java stack.
+     *
+     * @return false if the subtree can't be serialized from the snapshot.
+     */
+    private boolean serializeElement(StringBuilder html, Nodes nodes, int root, String documentUrl) {
+        // Node indexes to open, or ~index to close
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+            if (node < 0) {
+                html.append("</").append(nodes.tagName(~node)).append('>');
+                continue;
+            }
+
+            switch (nodes.type[node]) {
+                case ELEMENT_NODE:
+                    if (nodes.isPseudo[node]) { break; }
+
+                    String tag = nodes.tagName(node);
+                    if (tag.equals("canvas")) { return false; }
+                    if (tag.equals("style") && !hasText(nodes, node)) { return false; }
+
+                    html.append('<').append(tag);
+                    if (!appendAttributes(html, nodes, node, tag, documentUrl)) { return false; }
+                    html.append('>');
+                    if (VOID_ELEMENTS.contains(tag)) { break; }
+
+                    stack.push(~node);
+                    if (tag.equals("textarea") && nodes.inputValue[node] != -1) {
+                        escape(html, string(nodes.inputValue[node]), false);
+                        break;
+                    }
+                    for (int child = nodes.lastChild[node]; child != -1; child = nodes.previousSibling[child]) {
+                        stack.push(child);
+                    }
+                    break;
+                case TEXT_NODE:
+                    int parent = nodes.parent[node];
+                    if (parent != -1 && RAW_TEXT_ELEMENTS.contains(nodes.tagName(parent))) {
+                        html.append(string(nodes.value[node]));
+                    } else {
+                        escape(html, string(nodes.value[node]), false);
+                    }
+                    break;
+                case CDATA_SECTION_NODE:
+                    html.append("<![CDATA[").append(string(nodes.value[node])).append("]]>");
+                    break;
+                case COMMENT_NODE:
+                    html.append("<!--").append(string(nodes.value[node])).append("-->");
+                    break;
+                case DOCUMENT_FRAGMENT_NODE:
+                    // A shadow root
+                    return false;
+                default:
+                    break;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean hasText(Nodes nodes, int node) {
+        for (int child = nodes.firstChild[node]; child != -1; child = nodes.nextSibling[child]) {
+            if (nodes.type[child] == TEXT_NODE && !string(nodes.value[child]).trim().isEmpty()) { return true; }
+        }
+
+        return false;
+    }
+
+    private boolean appendAttributes(StringBuilder html, Nodes nodes, int node, String tag, String documentUrl) {
+        List<?> attributes = (List<?>) nodes.attributes.get(node);
+        boolean hasSrcdoc = false;
+        for (int i = 0; i + 1 < attributes.size(); i += 2) {
+            String name = string(attributes.get(i));
+            String value = string(attributes.get(i + 1));
+            if (name.equals("srcdoc")) { hasSrcdoc = true; }
+
+            // Form state is written below, from the live values
+            if (tag.equals("input") && (name.equals("value") && nodes.inputValue[node] != -1 || name.equals("checked"))) { continue; }
+            if (tag.equals("option") && name.equals("selected")) { continue; }
+
+            appendAttribute(html, name, value);
+        }
+
+        if (tag.equals("input")) {
+            if (nodes.inputValue[node] != -1) { appendAttribute(html, "value", string(nodes.inputValue[node])); }
+            if (nodes.isChecked[node]) { appendAttribute(html, "checked", ""); }
+        }
+        if (tag.equals("option") && nodes.isSelected[node]) { appendAttribute(html, "selected", ""); }
+
+        int frame = nodes.contentDocument[node];
+        if (frame != -1 && !hasSrcdoc) {
+            String frameUrl = string(((Map<?, ?>) documents.get(frame)).get("documentURL"));
+            if (isSameOrigin(documentUrl, frameUrl)) {
+                String frameHtml = serializeDocument(frame);
+                if (frameHtml == null) { return false; }
+                appendAttribute(html, "srcdoc", frameHtml);
+            }
+        }
+
+        return true;
+    }
+
+    private static void appendAttribute(StringBuilder html, String name, String value) {
+        html.append(' ').append(name).append("=\"");
+        escape(html, value, true);
+        html.append('"');
+    }
+
+    // Escape text or an attribute value as the HTML serialization algorithm does
+    private static void escape(StringBuilder html, String value, boolean isAttribute) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&': html.append("&amp;"); break;
+                case '\u00A0': html.append("&nbsp;"); break;
+                case '"': html.append(isAttribute ? "&quot;" : "\""); break;
+                case '<': html.append(isAttribute ? "<" : "&lt;"); break;
+                case '>': html.append(isAttribute ? ">" : "&gt;"); break;
+                default: html.append(c);
+            }
+        }
+    }
+
+    private static boolean isSameOrigin(String a, String b) {
+        // Frames created by script have no URL of their own
+        if (b.isEmpty() || b.equals("about:blank") || b.equals("about:srcdoc")) { return true; }
+
+        try {
+            URI first = new URI(a);
+            URI second = new URI(b);
+            return Objects.equals(first.getScheme(), second.getScheme()) && Objects.equals(first.getHost(), second.getHost())
+                && first.getPort() == second.getPort();
+        } catch (URISyntaxException ex) {
+            return false;
+        }
+    }
+
+    // A string table entry; -1 (or a missing index) is the empty string
+    private String string(@Nullable Object index) {
+        int i = index instanceof Number ? ((Number) index).intValue() : -1;
+        return i >= 0 && i < strings.size() ? String.valueOf(strings.get(i)) : "";
+    }
+
+    /**
+     * One document's `NodeTreeSnapshot`, unpacked into arrays indexed by node, with
+     * child links so the tree can be walked in order.
+     */
+    private final class Nodes {
+        final int[] parent;
+        final int[] type;
+        final int[] name;
+        final int[] value;
+        final List<?> attributes;
+        final int[] inputValue;
+        final boolean[] isChecked;
+        final boolean[] isSelected;
+        final boolean[] isPseudo;
+        final int[] contentDocument;
+        final int[] firstChild;
+        final int[] lastChild;
+        final int[] nextSibling;
+        final int[] previousSibling;
+        // Tag names by node, lowercased once
+        private final String[] tagNames;
+
+        Nodes(Map<?, ?> nodes) {
+            parent = ints(nodes.get("parentIndex"));
+            int count = parent.length;
+            type = ints(nodes.get("nodeType"));
+            name = ints(nodes.get("nodeName"));
+            value = ints(nodes.get("nodeValue"));
+            Object attributeList = nodes.get("attributes");
+            attributes = attributeList != null ? (List<?>) attributeList : Collections.nCopies(count, Collections.emptyList());
+            inputValue = rareInts(nodes.get("inputValue"), count);
+            isChecked = rareBooleans(nodes.get("inputChecked"), count);
+            isSelected = rareBooleans(nodes.get("optionSelected"), count);
+            isPseudo = rareBooleans(nodes.get("pseudoType"), count);
+            contentDocument = rareInts(nodes.get("contentDocumentIndex"), count);
+            tagNames = new String[count];
+
+            firstChild = filled(count);
+            lastChild = filled(count);
+            nextSibling = filled(count);
+            previousSibling = filled(count);
+            // Nodes come in document order, so appending keeps siblings in order
+            for (int node = 0; node < count; node++) {
+                int p = parent[node];
+                if (p < 0) { continue; }
+
+                if (lastChild[p] == -1) {
+                    firstChild[p] = node;
+                } else {
+                    nextSibling[lastChild[p]] = node;
+                    previousSibling[node] = lastChild[p];
+                }
+                lastChild[p] = node;
+            }
+        }
+
+        // HTML element names come uppercase, others (e.g. SVG's) in their own case
+        String tagName(int node) {
+            if (tagNames[node] == null) {
+                String tag = string(name[node]);
+                tagNames[node] = tag.equals(tag.toUpperCase(Locale.ROOT)) ? tag.toLowerCase(Locale.ROOT) : tag;
+            }
+
+            return tagNames[node];
+        }
+    }
+
+    private static int[] ints(@Nullable Object list) {
+        if (list == null) { return new int[0]; }
+
+        List<?> values = (List<?>) list;
+        int[] ints = new int[values.size()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = ((Number) values.get(i)).intValue();
+        }
+
+        return ints;
+    }
+
+    // RareStringData and RareIntegerData: values for the nodes in `index`
+    private static int[] rareInts(@Nullable Object data, int count) {
+        int[] values = filled(count);
+        if (data == null) { return values; }
+
+        int[] index = ints(((Map<?, ?>) data).get("index"));
+        int[] value = ints(((Map<?, ?>) data).get("value"));
+        for (int i = 0; i < index.length && i < value.length; i++) {
+            values[index[i]] = value[i];
+        }
+
+        return values;
+    }
+
+    // RareBooleanData, or any rare data: true for the nodes in `index`
+    private static boolean[] rareBooleans(@Nullable Object data, int count) {
+        boolean[] values = new boolean[count];
+        if (data == null) { return values; }
+
+        for (int node : ints(((Map<?, ?>) data).get("index"))) {
+            values[node] = true;
+        }
+
+        return values;
+    }
+
+    private static int[] filled(int count) {
+        int[] values = new int[count];
+        Arrays.fill(values, -1);
+        return values;
+    }
+}
@@ -0,0 +1,49 @@
+package io.percy.selenium;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Package-private request body that gzip-encodes a wrapped body while it is being
+ * written, using a pooled `Deflater`. Its length isn't known until the body has
+ * been compressed, so it is sent chunked.
+ */
+class GzipBody implements RequestBody {
+    private final RequestBody body;
+
+    GzipBody(RequestBody body) {
+        this.body = body;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        // Closing the gzip stream writes its trailer and returns the deflater to the
+        // pool, but must leave `out` open
+        OutputStream unclosable = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        try (OutputStream gzip = new PooledGzipOutputStream(unclosable)) {
+            body.writeTo(gzip);
+        }
+    }
+
+    @Override
+    public String contentType() {
+        return body.contentType();
+    }
+
+    @Override
+    public String contentEncoding() {
+        return "gzip";
+    }
+}
@@ -0,0 +1,122 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Transport for `http://` and `https://` CLI addresses that only uses the JDK
+ * (`HttpURLConnection`, which keeps connections alive between requests by itself),
+ * for setups without Apache HttpClient. Select it with `PERCY_TRANSPORT=jdk`.
+ */
+public final class JdkHttpTransport implements PercyTransport {
+    // Connect timeout in milliseconds
+    private static final int CONNECT_TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_CONNECT_TIMEOUT", "5000"));
+
+    // Read timeout in milliseconds; 0 waits indefinitely
+    private static final int READ_TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_READ_TIMEOUT", "0"));
+
+    // Chunk size for bodies whose length isn't known up front
+    private static final int CHUNK_SIZE = 65536;
+
+    @Override
+    public String name() {
+        return "jdk";
+    }
+
+    @Override
+    public boolean supports(String serverAddress) {
+        return serverAddress.startsWith("http://") || serverAddress.startsWith("https://");
+    }
+
+    @Override
+    public TransportResponse healthcheck(String serverAddress, int timeoutMillis) throws IOException {
+        HttpURLConnection connection = open(serverAddress + "/percy/healthcheck", "GET");
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+
+        return read(connection);
+    }
+
+    @Override
+    public TransportResponse fetchDomScript(String serverAddress, @Nullable String etag) throws IOException {
+        HttpURLConnection connection = open(serverAddress + "/percy/dom.js", "GET");
+        if (etag != null) { connection.setRequestProperty("If-None-Match", etag); }
+
+        return read(connection);
+    }
+
+    @Override
+    public TransportResponse postSnapshot(String serverAddress, RequestBody body) throws IOException {
+        HttpURLConnection connection = open(serverAddress + "/percy/snapshot", "POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", body.contentType());
+        if (body.contentEncoding() != null) { connection.setRequestProperty("Content-Encoding", body.contentEncoding()); }
+
+        long length = body.contentLength();
+        if (length >= 0) {
+            connection.setFixedLengthStreamingMode(length);
+        } else {
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+
+        try (OutputStream out = connection.getOutputStream()) {
+            body.writeTo(out);
+        }
+
+        return read(connection);
+    }
+
+    @Override
+    public TransportResponse postBatch(String serverAddress, RequestBody body) throws IOException {
+        return postSnapshot(serverAddress, body);
+    }
+
+    private static HttpURLConnection open(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        return connection;
+    }
+
+    /**
+     * Read the whole response. Reading the body to the end (and not disconnecting)
+     * lets the JDK reuse the connection.
+     */
+    private static TransportResponse read(HttpURLConnection connection) throws IOException {
+        int statusCode = connection.getResponseCode();
+
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // The status line is listed under a null name
+            if (header.getKey() != null && !header.getValue().isEmpty()) {
+                headers.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+
+        InputStream stream = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (stream == null) { return new TransportResponse(statusCode, headers, null); }
+
+        try (InputStream in = stream) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                body.write(buffer, 0, read);
+            }
+
+            return new TransportResponse(statusCode, headers, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.percy.selenium;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private request body wrapper that records how long writing the body took
+ * and how many bytes went over the connection.
+ */
+class MeasuredBody implements RequestBody {
+    private final RequestBody body;
+    private final SnapshotMetrics metrics;
+
+    MeasuredBody(RequestBody body, SnapshotMetrics metrics) {
+        this.body = body;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        long[] written = { 0 };
+
+        try {
+            body.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    written[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    written[0] += len;
+                }
+            });
+        } finally {
+            // A retried request is written again; keep the last attempt
+            metrics.encodeNanos = System.nanoTime() - start;
+            metrics.requestBytes = written[0];
+        }
+    }
+
+    @Override
+    public long contentLength() {
+        return body.contentLength();
+    }
+
+    @Override
+    public String contentType() {
+        return body.contentType();
+    }
+
+    @Nullable
+    @Override
+    public String contentEncoding() {
+        return body.contentEncoding();
+    }
+}
@@ -0,0 +1,220 @@
+package io.percy.selenium;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private JVM-wide budget for snapshot payloads that have been captured but
+ * not yet uploaded, so that background or parallel uploads can't pile up DOM
+ * strings until the fork runs out of memory.
+ *
+ * Every captured snapshot reserves its estimated size until it is published. When
+ * a new snapshot doesn't fit, `PERCY_MEMORY_BUDGET_POLICY` decides what happens:
+ * `block` waits for uploads to free enough room (for at most
+ * `PERCY_MEMORY_BUDGET_WAIT` milliseconds, after which the snapshot is let in
+ * anyway rather than hanging the test), `drop-oldest` drops the oldest snapshots
+ * that aren't being uploaded yet, and `spill` has the caller write the new
+ * snapshot's DOM to a temp file. A snapshot bigger than the whole budget is always
+ * let in once nothing else is reserved.
+ */
+class MemoryBudget {
+    enum Policy {
+        BLOCK,
+        DROP_OLDEST,
+        SPILL
+    }
+
+    // Budget in megabytes; 0 for no budget
+    private static final long BUDGET_MB = Long.parseLong(System.getenv().getOrDefault("PERCY_MEMORY_BUDGET_MB", "0"));
+
+    // What to do with a snapshot that doesn't fit
+    private static final Policy POLICY = Policy.valueOf(System.getenv()
+        .getOrDefault("PERCY_MEMORY_BUDGET_POLICY", "block").toUpperCase().replace('-', '_'));
+
+    // Longest a capturing thread waits for room under the block policy, in milliseconds
+    private static final long WAIT = Long.parseLong(System.getenv().getOrDefault("PERCY_MEMORY_BUDGET_WAIT", "60000"));
+
+    // Where the spill policy writes DOMs
+    static final Path SPILL_DIR = Paths.get(System.getenv().getOrDefault("PERCY_MEMORY_SPILL_DIR",
+        System.getProperty("java.io.tmpdir") + File.separator + "percy-java-selenium-spill"));
+
+    static final MemoryBudget GLOBAL = new MemoryBudget(BUDGET_MB * 1024 * 1024, POLICY, WAIT);
+
+    private final long limit;
+    private final Policy policy;
+    private final long waitMillis;
+
+    // Guarded by this
+    private long used;
+    private long peak;
+    // Reservations that may be dropped, oldest first
+    private final Set<Reservation> droppable = new LinkedHashSet<>();
+
+    MemoryBudget(long limit, Policy policy, long waitMillis) {
+        this.limit = limit;
+        this.policy = policy;
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * Bytes reserved by one snapshot, from capture until it is published.
+     */
+    final class Reservation {
+        // Guarded by the budget
+        private long bytes;
+        @Nullable private Runnable onDrop;
+        private boolean released;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Let `drop-oldest` drop the snapshot while it waits to be uploaded, e.g. in
+         * a queue or while held until the CLI is back.
+         *
+         * @param onDrop Called, outside any lock, if the snapshot is dropped.
+         */
+        void allowDrop(Runnable onDrop) {
+            synchronized (MemoryBudget.this) {
+                this.onDrop = onDrop;
+                if (!released) { droppable.add(this); }
+            }
+        }
+
+        /**
+         * Mark the snapshot as being uploaded, so `drop-oldest` leaves it alone.
+         *
+         * @return false if it was already dropped, in which case it must not be sent.
+         */
+        boolean claim() {
+            synchronized (MemoryBudget.this) {
+                droppable.remove(this);
+                return !released;
+            }
+        }
+
+        /**
+         * Give back all but `bytes`, e.g. once the snapshot's DOM is spilled to disk.
+         */
+        void shrink(long bytes) {
+            synchronized (MemoryBudget.this) {
+                if (released || bytes >= this.bytes) { return; }
+                used -= this.bytes - bytes;
+                this.bytes = bytes;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+
+        /**
+         * Give the bytes back. Safe to call more than once.
+         */
+        void release() {
+            synchronized (MemoryBudget.this) {
+                if (released) { return; }
+                released = true;
+                droppable.remove(this);
+                used -= bytes;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+    }
+
+    /** @return What happens to a snapshot that doesn't fit. */
+    Policy policy() {
+        return policy;
+    }
+
+    /**
+     * @return true if there is a budget at all.
+     */
+    boolean isLimited() {
+        return limit > 0;
+    }
+
+    /**
+     * Reserve room for a new snapshot, applying the policy if it doesn't fit.
+     *
+     * @return The reservation, or null if the policy is `spill` and the snapshot
+     *         doesn't fit, in which case the caller should spill it and `force` a
+     *         smaller reservation.
+     */
+    @Nullable
+    Reservation reserve(long bytes) throws InterruptedException {
+        if (!isLimited()) { return force(bytes); }
+
+        Reservation reservation;
+        List<Runnable> dropped;
+        synchronized (this) {
+            if (policy == Policy.BLOCK) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                for (long left = waitMillis; !fits(bytes) && left > 0; left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) {
+                    wait(left);
+                }
+            } else if (policy == Policy.SPILL && !fits(bytes)) {
+                return null;
+            }
+
+            dropped = policy == Policy.DROP_OLDEST ? dropUntilFits(bytes) : Collections.emptyList();
+            reservation = add(bytes);
+        }
+
+        for (Runnable drop : dropped) {
+            drop.run();
+        }
+
+        return reservation;
+    }
+
+    /**
+     * Reserve room regardless of the budget.
+     */
+    synchronized Reservation force(long bytes) {
+        return add(bytes);
+    }
+
+    /** @return Bytes currently reserved. */
+    synchronized long used() {
+        return used;
+    }
+
+    /** @return The most bytes ever reserved at once. */
+    synchronized long peak() {
+        return peak;
+    }
+
+    private boolean fits(long bytes) {
+        return used == 0 || used + bytes <= limit;
+    }
+
+    private List<Runnable> dropUntilFits(long bytes) {
+        List<Runnable> dropped = new ArrayList<>();
+        for (Iterator<Reservation> oldest = droppable.iterator(); oldest.hasNext() && !fits(bytes); ) {
+            Reservation reservation = oldest.next();
+            oldest.remove();
+            reservation.released = true;
+            used -= reservation.bytes;
+            dropped.add(reservation.onDrop);
+        }
+
+        return dropped;
+    }
+
+    private Reservation add(long bytes) {
+        Reservation reservation = new Reservation(bytes);
+        used += bytes;
+        peak = Math.max(peak, used);
+
+        return reservation;
+    }
+}
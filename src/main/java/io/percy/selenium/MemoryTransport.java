@@ -0,0 +1,147 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * In-process loopback transport for `memory://<name>` addresses, for tests and
+ * benchmarks that exercise the SDK without a network or a real CLI.
+ *
+ * Bind a `Handler` to a name with `bind`, and point `PERCY_SERVER_ADDRESS` at the
+ * address it returns. Requests are handed to the handler; with nothing bound, they
+ * fail as if the CLI wasn't running.
+ */
+public final class MemoryTransport implements PercyTransport {
+    private static final String SCHEME = "memory://";
+
+    // Handlers by name
+    private static final Map<String, Handler> HANDLERS = new ConcurrentHashMap<>();
+
+    /**
+     * Answers the requests sent to a `memory://` address, standing in for the CLI.
+     * Called concurrently from any thread that sends a request.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        TransportResponse handle(Request request) throws IOException;
+    }
+
+    /**
+     * A request sent to a `memory://` address.
+     */
+    public static final class Request {
+        private final String method;
+        private final String path;
+        private final Map<String, String> headers;
+        @Nullable private final RequestBody body;
+
+        Request(String method, String path, Map<String, String> headers, @Nullable RequestBody body) {
+            Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            copy.putAll(headers);
+
+            this.method = method;
+            this.path = path;
+            this.headers = Collections.unmodifiableMap(copy);
+            this.body = body;
+        }
+
+        /** @return `GET` or `POST`. */
+        public String getMethod() { return method; }
+
+        /** @return The request path, such as `/percy/snapshot`. */
+        public String getPath() { return path; }
+
+        /** @return The header's value, or null if it wasn't sent. */
+        @Nullable
+        public String getHeader(String name) { return headers.get(name); }
+
+        /**
+         * @return The body, still unencoded; write it somewhere to encode it. Null
+         *         for a `GET`.
+         */
+        @Nullable
+        public RequestBody getBody() { return body; }
+
+        /**
+         * @return The body as it would go over the wire (so compressed if its
+         *         `Content-Encoding` is `gzip`), or an empty array for a `GET`.
+         */
+        public byte[] readBody() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (body != null) { body.writeTo(out); }
+
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Send requests for `memory://<name>` to `handler`, replacing any handler
+     * already bound to that name.
+     *
+     * @return The address to use as `PERCY_SERVER_ADDRESS`.
+     */
+    public static String bind(String name, Handler handler) {
+        HANDLERS.put(name, handler);
+
+        return SCHEME + name;
+    }
+
+    /**
+     * Stop answering requests for `memory://<name>`.
+     */
+    public static void unbind(String name) {
+        HANDLERS.remove(name);
+    }
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+
+    @Override
+    public boolean supports(String serverAddress) {
+        return serverAddress.startsWith(SCHEME);
+    }
+
+    @Override
+    public TransportResponse healthcheck(String serverAddress, int timeoutMillis) throws IOException {
+        return send(serverAddress, "GET", "/percy/healthcheck", Collections.emptyMap(), null);
+    }
+
+    @Override
+    public TransportResponse fetchDomScript(String serverAddress, @Nullable String etag) throws IOException {
+        return send(serverAddress, "GET", "/percy/dom.js",
+            etag != null ? Collections.singletonMap("If-None-Match", etag) : Collections.emptyMap(), null);
+    }
+
+    @Override
+    public TransportResponse postSnapshot(String serverAddress, RequestBody body) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", body.contentType());
+        if (body.contentEncoding() != null) { headers.put("Content-Encoding", body.contentEncoding()); }
+
+        return send(serverAddress, "POST", "/percy/snapshot", headers, body);
+    }
+
+    @Override
+    public TransportResponse postBatch(String serverAddress, RequestBody body) throws IOException {
+        return postSnapshot(serverAddress, body);
+    }
+
+    private static TransportResponse send(String serverAddress, String method, String path,
+            Map<String, String> headers, @Nullable RequestBody body) throws IOException {
+        String name = serverAddress.substring(SCHEME.length());
+        Handler handler = HANDLERS.get(name);
+        if (handler == null) { throw new ConnectException("Nothing is bound to " + serverAddress); }
+
+        return handler.handle(new Request(method, path, headers, body));
+    }
+}
@@ -1,22 +1,29 @@
 package io.percy.selenium;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.util.EntityUtils;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,36 +35,221 @@ import org.openqa.selenium.WebDriverException;
 
 /**
  * Percy client for visual testing.
+ *
+ * A Percy instance is safe to share between threads. Snapshots of the same driver
+ * are captured one at a time, while uploads (including uploads for other drivers)
+ * run in parallel.
  */
-public class Percy {
+public class Percy implements AutoCloseable {
     // Selenium WebDriver we'll use for accessing the web pages to snapshot.
-    private WebDriver driver;
+    private final WebDriver driver;
 
-    // The JavaScript contained in dom.js
-    private String domJs = "";
+    // Set PERCY_ENABLED=false, or the percy.enabled system property to false, to turn
+    // snapshots off without ever contacting the CLI
+    private final boolean PERCY_ENABLED = !System.getProperty("percy.enabled",
+        System.getenv().getOrDefault("PERCY_ENABLED", "true")).equals("false");
 
     // Maybe get the CLI server address
-    private String PERCY_SERVER_ADDRESS = System.getenv().getOrDefault("PERCY_SERVER_ADDRESS", "http://localhost:5338");
+    private final String PERCY_SERVER_ADDRESS = System.getenv().getOrDefault("PERCY_SERVER_ADDRESS", "http://localhost:5338");
 
     // Determine if we're debug logging
-    private boolean PERCY_DEBUG = System.getenv().getOrDefault("PERCY_LOGLEVEL", "info").equals("debug");
+    private final boolean PERCY_DEBUG = System.getenv().getOrDefault("PERCY_LOGLEVEL", "info").equals("debug");
+
+    // Upload snapshots in the background instead of on the test thread
+    private final boolean PERCY_ASYNC_UPLOADS = System.getenv().getOrDefault("PERCY_ASYNC_UPLOADS", "false").equals("true");
+
+    // Maximum number of snapshots waiting to be uploaded in async mode
+    private final int PERCY_UPLOAD_QUEUE_SIZE = Integer.parseInt(System.getenv().getOrDefault("PERCY_UPLOAD_QUEUE_SIZE", "32"));
+
+    // Number of background upload threads when no executor is given
+    private final int PERCY_UPLOAD_THREADS = Integer.parseInt(System.getenv().getOrDefault("PERCY_UPLOAD_THREADS", "2"));
+
+    // Directory to spool snapshots to when they can't be posted to the CLI
+    @Nullable
+    private final String PERCY_SPOOL_DIR = System.getenv("PERCY_SPOOL_DIR");
+
+    // Maximum number of snapshots held in memory while the CLI can't be reached
+    private final int PERCY_HOLD_BUFFER_SIZE = Integer.parseInt(System.getenv().getOrDefault("PERCY_HOLD_BUFFER_SIZE", "16"));
+
+    // Send up to this many snapshots in one request when the CLI accepts batches; 1
+    // posts every snapshot on its own
+    private final int PERCY_BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("PERCY_BATCH_SIZE", "1"));
+
+    // Send a batch once its snapshots add up to this many bytes (estimated)
+    private final long PERCY_BATCH_BYTES = Long.parseLong(System.getenv().getOrDefault("PERCY_BATCH_BYTES", "4194304"));
+
+    // Send a batch this many milliseconds after its first snapshot, even if it isn't full
+    private final long PERCY_BATCH_DELAY = Long.parseLong(System.getenv().getOrDefault("PERCY_BATCH_DELAY", "100"));
+
+    // Batch format to use when the CLI accepts several: json or ndjson
+    private final BatchBody.Format PERCY_BATCH_FORMAT =
+        BatchBody.Format.valueOf(System.getenv().getOrDefault("PERCY_BATCH_FORMAT", "json").toUpperCase());
+
+    // Read the serialized DOM back from the browser this many characters at a time,
+    // straight into a temp file, instead of in one script result; 0 reads it whole
+    private final int PERCY_DOM_CHUNK_SIZE = Integer.parseInt(System.getenv().getOrDefault("PERCY_DOM_CHUNK_SIZE", "0"));
+
+    // Set to gzip to compress the serialized DOM in the browser, where it supports
+    // CompressionStream, before it is sent back over WebDriver
+    private final boolean PERCY_DOM_COMPRESSION = System.getenv().getOrDefault("PERCY_DOM_COMPRESSION", "none").equals("gzip");
+
+    // Browser storage that keeps dom.js between snapshots, so it is only sent to a
+    // tab once per origin: session, local or none. Off unless asked for, since it
+    // writes to the storage of the app under test. Also read from the
+    // percy.domStorage system property.
+    @Nullable
+    private final String PERCY_DOM_STORAGE = domStorage(System.getProperty("percy.domStorage",
+        System.getenv().getOrDefault("PERCY_DOM_STORAGE", "none")));
+
+    // How pages are serialized: js runs PercyDOM in the page; cdp takes a DevTools
+    // DOMSnapshot on Chromium drivers with Selenium 4, falling back to PercyDOM for
+    // pages (and drivers) it can't handle and for snapshots with enableJavaScript.
+    // Also read from the percy.captureEngine system property.
+    private final boolean PERCY_CAPTURE_ENGINE_CDP = System.getProperty("percy.captureEngine",
+        System.getenv().getOrDefault("PERCY_CAPTURE_ENGINE", "js")).equals("cdp");
+
+    // Set to false to capture through the Selenium 3 API even with Selenium 4, i.e.
+    // without pinned scripts or the DevTools protocol
+    private final boolean PERCY_SELENIUM4 = !System.getenv().getOrDefault("PERCY_SELENIUM4", "true").equals("false");
+
+    // Returns the next slice of the DOM left in the page by a sliced capture, and
+    // clears it from the page after the last slice
+    private static final String DOM_SLICE_JS =
+        "var dom = window.__percyDomSnapshot || '';\n" +
+        "var end = arguments[0] + arguments[1];\n" +
+        "if (end >= dom.length) { delete window.__percyDomSnapshot; }\n" +
+        "return dom.substring(arguments[0], end);\n";
+
+    // Returns true if the document uses constructed stylesheets, which a DOMSnapshot misses
+    private static final String ADOPTED_STYLESHEETS_JS =
+        "return !!(document.adoptedStyleSheets && document.adoptedStyleSheets.length);\n";
+
+    // How long `close()` waits for pending uploads
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(60);
+
+    // Set once the driver fails to run the compressing capture script, e.g. because
+    // its async script timeout is 0, so later snapshots don't try again
+    private volatile boolean isCompressionFailing;
+
+    // State of each driver's browser session, shared by every Percy instance using
+    // the driver and dropped along with the driver
+    private static final Map<WebDriver, DriverSession> SESSIONS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // Set once this instance has run a pinned capture script
+    private volatile boolean hasPinned;
+
+    // The CLI address this instance talks to
+    private final String serverAddress;
+
+    // The CLI core version reported by the healthcheck, which dom.js is cached under
+    @Nullable
+    private volatile String coreVersion;
+
+    // Where this instance is in its lifecycle; see `PercyState`
+    private final AtomicReference<PercyState> state = new AtomicReference<>(PercyState.PROBING);
+
+    // The first healthcheck, until its result has been applied to this instance
+    @Nullable
+    private volatile CompletableFuture<CliHealthcheck.Result> pendingHealthcheck;
 
-    // for logging
-    private String LABEL = "[\u001b[35m" + (PERCY_DEBUG ? "percy:java" : "percy") + "\u001b[39m]";
+    // The healthcheck whose result was applied last, retried while the CLI is away
+    @Nullable
+    private volatile CompletableFuture<CliHealthcheck.Result> lastHealthcheck;
 
-    // Is the Percy server running or not
-    private boolean isPercyEnabled = healthcheck();
+    // Set while a retried healthcheck is scheduled for this instance
+    private final AtomicBoolean isRetryScheduled = new AtomicBoolean();
+
+    // Set while held snapshots are scheduled to be retried when the circuit half-opens
+    private final AtomicBoolean isCircuitRetryScheduled = new AtomicBoolean();
+
+    // Snapshots captured while the CLI couldn't be reached, oldest first. Guarded by
+    // itself; moving to ENABLED and draining it happen under the same lock.
+    private final Deque<PendingSnapshot> heldSnapshots = new ArrayDeque<>();
 
     // Environment information like Java, browser, & SDK versions
-    private Environment env;
+    private final Environment env;
+
+    // Cumulative metrics behind `stats()`
+    private final StatsRecorder stats = new StatsRecorder();
+
+    // Listeners notified after every snapshot
+    private final List<SnapshotListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Collects snapshots into batches; null unless `PERCY_BATCH_SIZE` is over 1
+    @Nullable
+    private final SnapshotBatcher<PendingSnapshot> batcher;
+
+    // Batch format agreed with the CLI by the last healthcheck; null while snapshots
+    // are posted one at a time
+    @Nullable
+    private volatile BatchBody.Format batchFormat;
+
+    // Background upload queue; null when uploading synchronously
+    @Nullable
+    private volatile SnapshotQueue uploadQueue;
+
+    // Background upload queue for `snapshotAsync` when there is no `uploadQueue`,
+    // created on first use
+    @Nullable
+    private volatile SnapshotQueue asyncQueue;
+
+    // Set once `close` has released the upload queues, after which nothing is
+    // queued or batched. Guarded by this.
+    private boolean isClosed;
 
     /**
      * @param driver The Selenium WebDriver object that will hold the browser
      *               session to snapshot.
      */
     public Percy(WebDriver driver) {
+        this(driver, null, null);
+    }
+
+    /**
+     * Create a Percy client that uploads snapshots in the background. `snapshot`
+     * returns as soon as the DOM is captured; call `flush` or `close` before the
+     * test run ends so pending uploads are not lost.
+     *
+     * @param driver   The Selenium WebDriver object that will hold the browser
+     *                 session to snapshot.
+     * @param executor The executor to run uploads on. It is not shut down by
+     *                 `close`.
+     */
+    public Percy(WebDriver driver, ExecutorService executor) {
+        this(driver, null, executor);
+    }
+
+    /**
+     * @param serverAddress The CLI address, or null to use `PERCY_SERVER_ADDRESS`.
+     * @param executor      The executor to run uploads on, or null to upload
+     *                      synchronously unless `PERCY_ASYNC_UPLOADS` is set.
+     */
+    Percy(WebDriver driver, @Nullable String serverAddress, @Nullable ExecutorService executor) {
         this.driver = driver;
         this.env = new Environment(driver);
+        this.serverAddress = serverAddress != null ? serverAddress : PERCY_SERVER_ADDRESS;
+        this.batcher = PERCY_ENABLED && PERCY_BATCH_SIZE > 1
+            ? new SnapshotBatcher<>(PERCY_BATCH_SIZE, PERCY_BATCH_BYTES, PERCY_BATCH_DELAY,
+                snapshot -> snapshot.payload.estimatedSize(), this::uploadBatch)
+            : null;
+
+        if (!PERCY_ENABLED) {
+            // No healthcheck, HTTP client or upload threads; `snapshot` returns as soon
+            // as it reads the state
+            state.set(PercyState.DISABLED);
+            return;
+        }
+
+        if (executor != null || PERCY_ASYNC_UPLOADS) {
+            this.uploadQueue = executor != null
+                ? new SnapshotQueue(executor, PERCY_UPLOAD_QUEUE_SIZE)
+                : new SnapshotQueue(PERCY_UPLOAD_THREADS, PERCY_UPLOAD_QUEUE_SIZE);
+        }
+
+        // Don't wait for the CLI here; the first snapshot waits for whatever is left
+        CompletableFuture<CliHealthcheck.Result> probe = CliHealthcheck.probe(this.serverAddress);
+        this.pendingHealthcheck = probe;
+        probe.thenAccept(result -> applyFirstHealthcheck(probe, result));
     }
 
     /**
@@ -117,156 +309,1126 @@ public class Percy {
      * @param percyCSS Percy specific CSS that is only applied in Percy's browsers
      */
     public void snapshot(String name, @Nullable List<Integer> widths, Integer minHeight, boolean enableJavaScript, String percyCSS) {
-        if (!isPercyEnabled) { return; }
+        PendingSnapshot snapshot = capture(name, widths, minHeight, enableJavaScript, percyCSS, false);
+        if (snapshot != null) { upload(snapshot); }
+    }
+
+    /**
+     * Take a snapshot and upload it to Percy in the background.
+     *
+     * @param name The human-readable name of the snapshot. Should be unique.
+     * @return The outcome of the upload, completed once the CLI responds.
+     */
+    public CompletableFuture<SnapshotResult> snapshotAsync(String name) {
+        return snapshotAsync(name, null, null, false, null);
+    }
 
+    /**
+     * Take a snapshot and upload it to Percy in the background. The DOM is captured
+     * before this returns, so the page can be changed straight away. Snapshots held
+     * while the CLI can't be reached complete when they are finally sent.
+     *
+     * @param name      The human-readable name of the snapshot. Should be unique.
+     * @param widths    The browser widths at which you want to take the snapshot.
+     *                  In pixels.
+     * @param minHeight The minimum height of the resulting snapshot. In pixels.
+     * @param enableJavaScript Enable JavaScript in the Percy rendering environment
+     * @param percyCSS Percy specific CSS that is only applied in Percy's browsers
+     * @return The outcome of the upload, completed once the CLI responds.
+     */
+    public CompletableFuture<SnapshotResult> snapshotAsync(String name, @Nullable List<Integer> widths,
+            @Nullable Integer minHeight, boolean enableJavaScript, @Nullable String percyCSS) {
+        PendingSnapshot snapshot = capture(name, widths, minHeight, enableJavaScript, percyCSS, true);
+        if (snapshot == null) {
+            return CompletableFuture.completedFuture(
+                new SnapshotResult(SnapshotResult.Status.SKIPPED, 0, null, new SnapshotMetrics(name)));
+        }
+
+        upload(snapshot);
+        return snapshot.result;
+    }
+
+    /**
+     * Capture the page on the calling thread.
+     *
+     * @return The snapshot to upload, or null if Percy is disabled.
+     */
+    @Nullable
+    private PendingSnapshot capture(String name, @Nullable List<Integer> widths, @Nullable Integer minHeight,
+            boolean enableJavaScript, @Nullable String percyCSS, boolean isAsync) {
+        PercyState current = state.get();
+        if (current == PercyState.PROBING) { current = healthcheck(); }
+        if (current == PercyState.DISABLED) { return null; }
+
+        String domJs = fetchPercyDOM();
+        if (domJs == null) { return null; }
         String domSnapshot = "";
+        String url = null;
+        SnapshotPayload payload = null;
+        Capture capture = PERCY_DOM_CHUNK_SIZE > 0 ? Capture.SLICES
+            : PERCY_DOM_COMPRESSION && !isCompressionFailing ? Capture.GZIP
+            : Capture.WHOLE;
+
+        // A driver can only run one command at a time, so threads sharing it (through
+        // this or another Percy instance) take turns capturing. Uploads happen outside
+        // the lock.
+        SnapshotMetrics metrics = new SnapshotMetrics(name);
+        synchronized (driver) {
+            try {
+                // Inject, serialize and read the URL in a single round trip to the browser
+                JavascriptExecutor jse = (JavascriptExecutor) driver;
+                long start = System.nanoTime();
+                // The DOMSnapshot is written out the way PercyDOM does without enableJavaScript
+                Map<?, ?> result = PERCY_CAPTURE_ENGINE_CDP && !enableJavaScript && PERCY_SELENIUM4
+                    && Selenium4Adapter.canUseDevTools(driver)
+                    ? captureWithDevTools(jse)
+                    : null;
+                if (result != null) {
+                    capture = Capture.WHOLE;
+                } else {
+                    result = runSnapshotJS(jse, domJs, Boolean.toString(enableJavaScript), capture);
+                }
+                long roundTrip = System.nanoTime() - start;
+
+                if (capture != Capture.SLICES) { domSnapshot = (String) result.get("domSnapshot"); }
+                url = (String) result.get("url");
+                metrics.injectNanos = millisToNanos(result.get("injectTime"));
+                metrics.serializeNanos = millisToNanos(result.get("serializeTime"));
+                metrics.transferNanos = Math.max(0, roundTrip - metrics.injectNanos - metrics.serializeNanos);
+
+                if (result.get("domGzip") != null) {
+                    long domLength = ((Number) result.get("domLength")).longValue();
+                    byte[] gzipped = Base64.getDecoder().decode((String) result.get("domGzip"));
+                    payload = new SnapshotPayload(name, url, null, widths, minHeight, enableJavaScript, percyCSS,
+                        env.getClientInfo(), env.getEnvironmentInfo()).withGzippedDom(gzipped, domLength);
+                    metrics.domChars = domLength;
+                } else if (capture == Capture.SLICES) {
+                    long domLength = ((Number) result.get("domLength")).longValue();
+                    start = System.nanoTime();
+                    payload = new SnapshotPayload(name, url, null, widths, minHeight, enableJavaScript, percyCSS,
+                        env.getClientInfo(), env.getEnvironmentInfo()).spill(MemoryBudget.SPILL_DIR, domSlices(jse, domLength));
+                    metrics.transferNanos += System.nanoTime() - start;
+                    metrics.domChars = domLength;
+                }
+            } catch (WebDriverException | IOException e) {
+                // For some reason, the execution in the browser failed.
+                if (PERCY_DEBUG) { log(e.getMessage()); }
+            }
+
+            if (url == null) { url = driver.getCurrentUrl(); }
+        }
+
+        if (payload == null) {
+            payload = new SnapshotPayload(name, url, domSnapshot, widths, minHeight,
+                enableJavaScript, percyCSS, env.getClientInfo(), env.getEnvironmentInfo());
+            metrics.domChars = domSnapshot != null ? domSnapshot.length() : 0;
+        }
+
+        return admit(payload, metrics, isAsync);
+    }
+
+    /**
+     * @return The DOM left in the page by a sliced capture, read
+     *         `PERCY_DOM_CHUNK_SIZE` characters per script call.
+     */
+    private SnapshotPayload.DomSlices domSlices(JavascriptExecutor jse, long domLength) {
+        long[] offset = { 0 };
+        return () -> {
+            if (offset[0] >= domLength) { return null; }
+
+            String slice = (String) jse.executeScript(DOM_SLICE_JS, offset[0], PERCY_DOM_CHUNK_SIZE);
+            if (slice == null || slice.isEmpty()) { throw new IOException("The DOM was cleared from the page while it was read"); }
+            offset[0] += slice.length();
+
+            return slice;
+        };
+    }
 
+    /**
+     * Reserve room for a captured snapshot under the JVM-wide memory budget,
+     * waiting, dropping older snapshots or spilling this one to disk as
+     * `PERCY_MEMORY_BUDGET_POLICY` says.
+     */
+    private PendingSnapshot admit(SnapshotPayload payload, SnapshotMetrics metrics, boolean isAsync) {
+        MemoryBudget budget = MemoryBudget.GLOBAL;
+        MemoryBudget.Reservation reservation;
         try {
-            JavascriptExecutor jse = (JavascriptExecutor) driver;
-            jse.executeScript(fetchPercyDOM());
-            domSnapshot = (String) jse.executeScript(buildSnapshotJS(Boolean.toString(enableJavaScript)));
-        } catch (WebDriverException e) {
-            // For some reason, the execution in the browser failed.
-            if (PERCY_DEBUG) { log(e.getMessage()); }
+            reservation = budget.reserve(payload.estimatedSize());
+        } catch (InterruptedException ex) {
+            // Stop waiting, but keep the snapshot
+            Thread.currentThread().interrupt();
+            reservation = budget.force(payload.estimatedSize());
+        }
+
+        if (reservation == null) {
+            try {
+                payload = payload.spill(MemoryBudget.SPILL_DIR);
+            } catch (IOException ex) {
+                if (PERCY_DEBUG) { log("Could not spill snapshot " + payload.name + ": " + ex); }
+            }
+            reservation = budget.force(payload.estimatedSize());
+        }
+
+        PendingSnapshot snapshot = new PendingSnapshot(payload, reservation, metrics, isAsync);
+        reservation.allowDrop(() -> dropForMemory(snapshot));
+
+        return snapshot;
+    }
+
+    private void dropForMemory(PendingSnapshot snapshot) {
+        synchronized (heldSnapshots) {
+            heldSnapshots.remove(snapshot);
         }
 
-        postSnapshot(domSnapshot, name, widths, minHeight, driver.getCurrentUrl(), enableJavaScript, percyCSS);
+        log("Dropped snapshot " + snapshot.payload.name + " to stay within PERCY_MEMORY_BUDGET_MB");
+        publish(snapshot, SnapshotResult.Status.DROPPED, null);
     }
 
     /**
-     * Checks to make sure the local Percy server is running. If not, disable Percy.
+     * @return Whether this instance is currently capturing and uploading snapshots.
      */
-    private boolean healthcheck() {
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            //Creating a HttpGet object
-            HttpGet httpget = new HttpGet(PERCY_SERVER_ADDRESS + "/percy/healthcheck");
+    public PercyState getState() {
+        return state.get();
+    }
 
-            //Executing the Get request
-            HttpResponse response = httpClient.execute(httpget);
-            int statusCode = response.getStatusLine().getStatusCode();
+    /**
+     * Register a listener that receives timing metrics for every snapshot taken by
+     * this instance.
+     *
+     * @param listener The listener to add.
+     */
+    public void addSnapshotListener(SnapshotListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener The listener to remove.
+     */
+    public void removeSnapshotListener(SnapshotListener listener) {
+        listeners.remove(listener);
+    }
 
-            if (statusCode != 200){
-                throw new RuntimeException("Failed with HTTP error code : " + statusCode);
+    /**
+     * @return Cumulative metrics for the snapshots taken by this instance so far.
+     */
+    public PercyStats stats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Wait for snapshots queued for background upload to finish uploading. Does
+     * nothing when snapshots are uploaded synchronously.
+     *
+     * @param timeout The maximum time to wait.
+     * @return true if every pending upload finished before the timeout elapsed.
+     */
+    public boolean flush(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        if (batcher != null) { batcher.flush(); }
+
+        try {
+            for (SnapshotQueue queue : Arrays.asList(uploadQueue, asyncQueue)) {
+                if (queue != null && !queue.flush(Duration.ofNanos(deadline - System.nanoTime()))) { return false; }
             }
 
-            String version = response.getFirstHeader("x-percy-core-version").getValue();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait for pending background uploads, release the upload queues and unpin the
+     * capture script from the driver's session. Snapshots taken after `close` with
+     * `snapshot` are uploaded synchronously.
+     */
+    @Override
+    public void close() {
+        // Last chance for snapshots held while the CLI was overloaded
+        uploadHeld();
+        if (batcher != null) { batcher.flush(); }
+        if (flush(CLOSE_TIMEOUT) && hasHeldSnapshots()) { retryHeldBeforeClosing(); }
+
+        List<SnapshotQueue> queues;
+        synchronized (this) {
+            queues = Arrays.asList(uploadQueue, asyncQueue);
+            uploadQueue = null;
+            asyncQueue = null;
+            isClosed = true;
+        }
 
-            if (version == null) {
-                log("You may be using @percy/agent" +
-                    "which is no longer supported by this SDK." +
-                    "Please uninstall @percy/agent and install @percy/cli instead." +
-                    "https://docs.percy.io/docs/migrating-to-percy-cli"
-                    );
+        for (SnapshotQueue queue : queues) {
+            if (queue == null) { continue; }
 
-                return false;
+            try {
+                if (!queue.close(CLOSE_TIMEOUT)) {
+                    log("Timed out waiting for snapshots to upload");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
+        }
+        closeSpool();
+        unpinScripts();
+
+        List<PendingSnapshot> held;
+        synchronized (heldSnapshots) {
+            held = new ArrayList<>(heldSnapshots);
+            heldSnapshots.clear();
+        }
+        if (held.isEmpty()) { return; }
 
-            if (!version.split("\\.")[0].equals("1")) {
-                log("Unsupported Percy CLI version, " + version);
+        log(held.size() + " snapshots were not uploaded because Percy could not be reached");
+        for (PendingSnapshot snapshot : held) {
+            snapshot.release();
+            snapshot.result.complete(new SnapshotResult(SnapshotResult.Status.HELD, 0, null, snapshot.metrics));
+        }
+    }
+
+    private boolean hasHeldSnapshots() {
+        synchronized (heldSnapshots) {
+            return !heldSnapshots.isEmpty();
+        }
+    }
+
+    /**
+     * Post the snapshots still held while the CLI is running, once the circuit lets
+     * uploads through again, so an overloaded CLI doesn't cost them. They are posted
+     * one at a time, the first as the circuit's trial upload; any that are refused
+     * again stay held.
+     */
+    private void retryHeldBeforeClosing() {
+        List<PendingSnapshot> held;
+        synchronized (heldSnapshots) {
+            if (state.get() != PercyState.ENABLED) { return; }
+
+            held = new ArrayList<>(heldSnapshots);
+            heldSnapshots.clear();
+        }
 
-                return false;
+        long wait = CircuitBreaker.forAddress(serverAddress).millisUntilHalfOpen();
+        if (wait > 0) {
+            if (PERCY_DEBUG) { log("Waiting " + wait + "ms to retry " + held.size() + " held snapshots"); }
+            try {
+                Thread.sleep(Math.min(wait, CLOSE_TIMEOUT.toMillis()));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
+        }
 
-            return true;
-        } catch (Exception ex) {
-            log("Percy is not running, disabling snapshots");
-            // bike shed.. single line?
-            if (PERCY_DEBUG) { log(ex.toString()); }
+        for (PendingSnapshot snapshot : held) {
+            postSnapshot(snapshot);
+        }
+    }
 
-            return false;
+    /**
+     * Checks to make sure the local Percy server is running. Waits for the shared
+     * healthcheck the first time; after that it's just a read.
+     */
+    private PercyState healthcheck() {
+        CompletableFuture<CliHealthcheck.Result> pending = pendingHealthcheck;
+        if (pending != null) { applyFirstHealthcheck(pending, pending.join()); }
+
+        return state.get();
+    }
+
+    private void applyFirstHealthcheck(CompletableFuture<CliHealthcheck.Result> probe, CliHealthcheck.Result result) {
+        synchronized (this) {
+            if (pendingHealthcheck != probe) { return; }
+
+            applyHealthcheck(probe, result);
+            pendingHealthcheck = null;
         }
+
+        uploadHeld();
+    }
+
+    private void applyHealthcheck(CompletableFuture<CliHealthcheck.Result> probe, CliHealthcheck.Result result) {
+        PercyState previous = state.get();
+        lastHealthcheck = probe;
+
+        if (result.status == CliHealthcheck.Status.RUNNING) {
+            coreVersion = result.coreVersion;
+            batchFormat = batcher != null ? BatchBody.Format.choose(result.batchFormats, PERCY_BATCH_FORMAT) : null;
+            if (previous != PercyState.PROBING && previous != PercyState.ENABLED && result.claimReport()) {
+                log("Percy is running again, resuming snapshots");
+            }
+            enable();
+
+            return;
+        }
+
+        if (result.status == CliHealthcheck.Status.UNSUPPORTED) {
+            // Retrying won't help until someone upgrades the CLI
+            disable();
+
+            return;
+        }
+
+        boolean report = previous == PercyState.PROBING && result.claimReport();
+        if (DomScriptCache.contains(null)) {
+            if (report) {
+                log(PERCY_SPOOL_DIR != null
+                    ? "Percy is not running, spooling snapshots to " + PERCY_SPOOL_DIR
+                    : "Percy is not running, holding snapshots until it starts");
+                if (PERCY_DEBUG) { log(result.error.toString()); }
+            }
+            state.set(PercyState.DEGRADED);
+        } else {
+            if (report) {
+                log("Percy is not running, disabling snapshots");
+                // bike shed.. single line?
+                if (PERCY_DEBUG) { log(result.error.toString()); }
+            }
+            disable();
+        }
+
+        retryHealthcheck();
     }
 
     /**
-     * Attempts to load dom.js from the local Percy server. Use cached value in `domJs`,
-     * if it exists.
+     * Check the CLI again in the background, after a backoff, unless a retry is
+     * already scheduled. Gives up after `PERCY_HEALTHCHECK_RETRIES` failures.
+     */
+    private void retryHealthcheck() {
+        CompletableFuture<CliHealthcheck.Result> failed = lastHealthcheck;
+        if (failed == null || !isRetryScheduled.compareAndSet(false, true)) { return; }
+
+        CompletableFuture<CliHealthcheck.Result> retry = CliHealthcheck.retry(serverAddress, failed);
+        if (retry == null) {
+            isRetryScheduled.set(false);
+            // Spooled snapshots can still be replayed later, so keep capturing those
+            if (PERCY_SPOOL_DIR == null || state.get() != PercyState.DEGRADED) {
+                if (state.get() != PercyState.DISABLED) { log("Percy is not running, disabling snapshots"); }
+                disable();
+            }
+
+            return;
+        }
+
+        retry.thenAccept(result -> {
+            isRetryScheduled.set(false);
+            synchronized (this) {
+                applyHealthcheck(retry, result);
+            }
+
+            // Outside the lock, and only queued, so the shared probe thread moves on
+            uploadHeld();
+        });
+    }
+
+    /**
+     * Move to ENABLED. The caller uploads the snapshots held while the CLI was away
+     * with `uploadHeld`, once it no longer holds this instance's lock.
+     */
+    private void enable() {
+        state.set(PercyState.ENABLED);
+    }
+
+    /**
+     * Move to DISABLED, dropping any held snapshots.
+     */
+    private void disable() {
+        List<PendingSnapshot> dropped;
+        synchronized (heldSnapshots) {
+            state.set(PercyState.DISABLED);
+            dropped = new ArrayList<>(heldSnapshots);
+            heldSnapshots.clear();
+        }
+        if (dropped.isEmpty()) { return; }
+
+        log("Dropped " + dropped.size() + " snapshots taken while Percy could not be reached");
+        for (PendingSnapshot snapshot : dropped) {
+            publish(snapshot, SnapshotResult.Status.DROPPED, null);
+        }
+    }
+
+    /**
+     * Attempts to load dom.js from the local Percy server, through the JVM-wide cache
+     * that is shared with other processes on disk.
      *
      * This JavaScript is critical for capturing snapshots. It serializes and captures
-     * the DOM. Without it, snapshots cannot be captured.
+     * the DOM. Without it, snapshots cannot be captured, so snapshots are disabled
+     * until a retried healthcheck succeeds.
      */
+    @Nullable
     private String fetchPercyDOM() {
-        if (!domJs.trim().isEmpty()) { return domJs; }
+        try {
+            return DomScriptCache.get(serverAddress, coreVersion);
+        } catch (Exception ex) {
+            if (state.get() != PercyState.DISABLED && PERCY_DEBUG) { log(ex.toString()); }
+            disable();
+            retryHealthcheck();
 
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            HttpGet httpget = new HttpGet(PERCY_SERVER_ADDRESS + "/percy/dom.js");
-            HttpResponse response = httpClient.execute(httpget);
-            int statusCode = response.getStatusLine().getStatusCode();
+            return null;
+        }
+    }
 
-            if (statusCode != 200){
-                throw new RuntimeException("Failed with HTTP error code: " + statusCode);
-            }
-            HttpEntity httpEntity = response.getEntity();
-            String domString = EntityUtils.toString(httpEntity);
-            domJs = domString;
+    /**
+     * Post a captured snapshot, on the upload queue if there is one. Snapshots taken
+     * with `snapshotAsync` always go to a queue, as do batches.
+     */
+    private void upload(PendingSnapshot snapshot) {
+        if (batcher != null && batchFormat != null && !isClosed()) {
+            batcher.add(snapshot);
+            return;
+        }
 
-            return domString;
-        } catch (Exception ex) {
-            isPercyEnabled = false;
-            if (PERCY_DEBUG) { log(ex.toString()); }
+        SnapshotQueue queue = uploadQueue;
+        if (queue == null && snapshot.isAsync) { queue = asyncQueue(); }
+        if (queue == null) {
+            postSnapshot(snapshot);
+            return;
+        }
 
-            return "";
+        try {
+            queue.submit(() -> postSnapshot(snapshot));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log("Could not queue snapshot " + snapshot.payload.name);
+            publish(snapshot, SnapshotResult.Status.DROPPED, null);
         }
     }
 
+    /**
+     * Post a full (or timed out) batch on the upload queue. The shared batch timer
+     * (`canWait` false) queues it without waiting for room, so one full queue doesn't
+     * hold up every instance's batches.
+     */
+    private void uploadBatch(List<PendingSnapshot> batch, boolean canWait) {
+        SnapshotQueue queue = uploadQueue;
+        if (queue == null) { queue = asyncQueue(); }
+        if (queue == null) {
+            // Batched as `close` released the queues
+            postSnapshots(batch);
+            return;
+        }
+
+        try {
+            if (canWait) {
+                queue.submit(() -> postSnapshots(batch));
+            } else {
+                queue.submitWithoutWaiting(() -> postSnapshots(batch));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log("Could not queue " + batch.size() + " snapshots");
+            for (PendingSnapshot snapshot : batch) {
+                publish(snapshot, SnapshotResult.Status.DROPPED, null);
+            }
+        }
+    }
+
+    /**
+     * @return The background queue for snapshots without an `uploadQueue`, or null
+     *         once the instance is closed, so no queue is left running after `close`.
+     */
+    @Nullable
+    private synchronized SnapshotQueue asyncQueue() {
+        if (asyncQueue == null && !isClosed) { asyncQueue = new SnapshotQueue(PERCY_UPLOAD_THREADS, PERCY_UPLOAD_QUEUE_SIZE); }
+
+        return asyncQueue;
+    }
+
+    private synchronized boolean isClosed() {
+        return isClosed;
+    }
+
     /**
      * POST the DOM taken from the test browser to the Percy Agent node process.
      *
-     * @param domSnapshot Stringified & serialized version of the site/applications DOM
-     * @param name        The human-readable name of the snapshot. Should be unique.
-     * @param widths      The browser widths at which you want to take the snapshot.
-     *                    In pixels.
-     * @param minHeight   The minimum height of the resulting snapshot. In pixels.
-     * @param enableJavaScript Enable JavaScript in the Percy rendering environment
-     * @param percyCSS Percy specific CSS that is only applied in Percy's browsers
+     * @param snapshot The serialized DOM and snapshot options, streamed to the
+     *                 server as it is encoded, and its metrics, which are completed
+     *                 and published here.
+     */
+    private void postSnapshot(PendingSnapshot snapshot) {
+        postSnapshots(Collections.singletonList(snapshot));
+    }
+
+    /**
+     * POST one snapshot, or several in one batch request, retrying failures. The
+     * snapshots share the outcome: all are uploaded, rejected or held together.
+     */
+    private void postSnapshots(List<PendingSnapshot> snapshots) {
+        // Leave out snapshots dropped to stay within the memory budget while they waited
+        List<PendingSnapshot> claimed = new ArrayList<>(snapshots.size());
+        for (PendingSnapshot snapshot : snapshots) {
+            if (snapshot.reservation.claim()) { claimed.add(snapshot); }
+        }
+        if (claimed.isEmpty()) { return; }
+        snapshots = claimed;
+
+        PercyState current = state.get();
+        if (current == PercyState.DISABLED) {
+            for (PendingSnapshot snapshot : snapshots) {
+                publish(snapshot, SnapshotResult.Status.DROPPED, null);
+            }
+            return;
+        }
+        if (current != PercyState.ENABLED) {
+            holdAll(snapshots);
+            return;
+        }
+
+        BatchBody.Format format = batchFormat;
+        if (snapshots.size() > 1 && format == null) {
+            // The CLI was restarted without batch support since the batch was started
+            for (PendingSnapshot snapshot : snapshots) {
+                postSnapshot(snapshot);
+            }
+            return;
+        }
+
+        String description = snapshots.size() == 1
+            ? "snapshot " + snapshots.get(0).payload.name
+            : "batch of " + snapshots.size() + " snapshots";
+        CircuitBreaker breaker = CircuitBreaker.forAddress(serverAddress);
+        long start = System.nanoTime();
+        TransportResponse response;
+        for (int attempt = 0; ; attempt++) {
+            if (!breaker.allowRequest()) {
+                // The CLI is overloaded; don't add to its load
+                if (PERCY_DEBUG) { log("Circuit open, holding " + description); }
+                holdAll(snapshots);
+                retryHeldWhenHalfOpen(breaker);
+                return;
+            }
+
+            try {
+                response = send(snapshots, format);
+            } catch (Exception ex) {
+                if (PERCY_DEBUG) { log(ex.toString()); }
+                if (breaker.recordFailure()) { tripped(breaker); }
+                if (attempt < RetryPolicy.RETRIES && RetryPolicy.backoff(attempt)) {
+                    for (PendingSnapshot snapshot : snapshots) { snapshot.metrics.retries++; }
+                    continue;
+                }
+
+                // The CLI went away; hold on to the snapshots until it is back
+                if (state.compareAndSet(PercyState.ENABLED, PercyState.DEGRADED)) {
+                    log("Could not reach Percy, holding snapshots until it is back");
+                }
+                retryHealthcheck();
+                holdAll(snapshots);
+
+                return;
+            }
+
+            if (!RetryPolicy.isRetryable(response.getStatusCode())) {
+                breaker.recordSuccess();
+                break;
+            }
+
+            if (breaker.recordFailure()) { tripped(breaker); }
+            if (attempt < RetryPolicy.RETRIES && RetryPolicy.backoff(attempt)) {
+                for (PendingSnapshot snapshot : snapshots) { snapshot.metrics.retries++; }
+                continue;
+            }
+
+            log("Percy responded with " + response.getStatusCode() + ", holding " + description);
+            holdAll(snapshots);
+
+            return;
+        }
+
+        long encodeNanos = 0;
+        for (PendingSnapshot snapshot : snapshots) { encodeNanos += snapshot.metrics.encodeNanos; }
+        long postNanos = Math.max(0, System.nanoTime() - start - encodeNanos);
+        boolean uploaded = response.isSuccessful();
+        if (!uploaded) { log("Could not post " + description + ", Percy responded with " + response.getStatusCode()); }
+
+        for (PendingSnapshot snapshot : snapshots) {
+            snapshot.metrics.uploaded = uploaded;
+            snapshot.metrics.postNanos = postNanos;
+            snapshot.metrics.batchSize = snapshots.size();
+            publish(snapshot, uploaded ? SnapshotResult.Status.UPLOADED : SnapshotResult.Status.REJECTED, response);
+        }
+
+        // The CLI is taking snapshots again; send along any that were held meanwhile
+        if (uploaded) { uploadHeld(); }
+    }
+
+    private void tripped(CircuitBreaker breaker) {
+        stats.recordCircuitTrip();
+        retryHeldWhenHalfOpen(breaker);
+    }
+
+    /**
+     * Upload the held snapshots again once the open circuit lets a trial upload
+     * through, unless that is already scheduled. Nothing else would move them while
+     * the CLI stays reachable but overloaded.
+     */
+    private void retryHeldWhenHalfOpen(CircuitBreaker breaker) {
+        if (!isCircuitRetryScheduled.compareAndSet(false, true)) { return; }
+
+        boolean scheduled = breaker.whenHalfOpen(() -> {
+            isCircuitRetryScheduled.set(false);
+            uploadHeld();
+        });
+        if (!scheduled) { isCircuitRetryScheduled.set(false); }
+    }
+
+    private TransportResponse send(List<PendingSnapshot> snapshots, @Nullable BatchBody.Format format) throws IOException {
+        if (snapshots.size() == 1 || format == null) {
+            PendingSnapshot snapshot = snapshots.get(0);
+            return SnapshotUploader.post(serverAddress, snapshot.payload, snapshot.metrics);
+        }
+
+        List<SnapshotPayload> payloads = new ArrayList<>(snapshots.size());
+        List<SnapshotMetrics> metrics = new ArrayList<>(snapshots.size());
+        for (PendingSnapshot snapshot : snapshots) {
+            payloads.add(snapshot.payload);
+            metrics.add(snapshot.metrics);
+        }
+
+        return SnapshotUploader.postBatch(serverAddress, payloads, metrics, format);
+    }
+
+    private void holdAll(List<PendingSnapshot> snapshots) {
+        for (PendingSnapshot snapshot : snapshots) {
+            hold(snapshot);
+        }
+    }
+
+    /**
+     * Keep a snapshot that can't be posted right now: in the spool if one is
+     * configured, otherwise in memory until the CLI is back. When the buffer is
+     * full, the oldest held snapshot is dropped.
+     *
+     * Under a memory budget that doesn't drop snapshots, the held snapshot's DOM is
+     * spilled to disk, so a CLI that stays away doesn't keep capturing threads
+     * waiting for its room.
+     */
+    private void hold(PendingSnapshot snapshot) {
+        if (spoolSnapshot(snapshot.payload)) {
+            publish(snapshot, SnapshotResult.Status.SPOOLED, null);
+            return;
+        }
+
+        MemoryBudget budget = MemoryBudget.GLOBAL;
+        if (budget.isLimited() && budget.policy() != MemoryBudget.Policy.DROP_OLDEST) {
+            try {
+                snapshot.payload = snapshot.payload.spill(MemoryBudget.SPILL_DIR);
+                snapshot.reservation.shrink(snapshot.payload.heapSize());
+            } catch (IOException ex) {
+                if (PERCY_DEBUG) { log("Could not spill held snapshot " + snapshot.payload.name + ": " + ex); }
+            }
+        }
+
+        PendingSnapshot dropped = null;
+        synchronized (heldSnapshots) {
+            if (heldSnapshots.size() >= PERCY_HOLD_BUFFER_SIZE) { dropped = heldSnapshots.poll(); }
+            heldSnapshots.add(snapshot);
+        }
+        snapshot.reservation.allowDrop(() -> dropForMemory(snapshot));
+
+        if (dropped != null) {
+            log("Could not post snapshot " + dropped.payload.name);
+            publish(dropped, SnapshotResult.Status.DROPPED, null);
+        }
+    }
+
+    /**
+     * Upload every held snapshot, unless snapshots can't be uploaded right now. This
+     * runs on upload workers, which already hold a slot in the upload queue, and on
+     * the shared healthcheck threads, so the snapshots are queued without waiting
+     * for room, in batches if the CLI takes them.
+     * Whoever took them has moved on, so they always go to a background queue.
+     */
+    private void uploadHeld() {
+        // After `close`, which has already given up on them
+        if (isClosed()) { return; }
+
+        List<PendingSnapshot> held;
+        synchronized (heldSnapshots) {
+            if (heldSnapshots.isEmpty() || state.get() != PercyState.ENABLED) { return; }
+
+            held = new ArrayList<>(heldSnapshots);
+            heldSnapshots.clear();
+        }
+
+        SnapshotQueue queue = uploadQueue != null ? uploadQueue : asyncQueue();
+        int batchSize = batchFormat != null ? PERCY_BATCH_SIZE : 1;
+        for (int i = 0; i < held.size(); i += batchSize) {
+            List<PendingSnapshot> snapshots = new ArrayList<>(held.subList(i, Math.min(held.size(), i + batchSize)));
+            if (queue == null) {
+                // `close` released the queues meanwhile
+                postSnapshots(snapshots);
+            } else {
+                queue.submitWithoutWaiting(() -> postSnapshots(snapshots));
+            }
+        }
+    }
+
+    /**
+     * Record a finished snapshot's metrics, pass them to listeners, and complete its
+     * result.
+     */
+    private void publish(PendingSnapshot snapshot, SnapshotResult.Status status, @Nullable TransportResponse response) {
+        snapshot.release();
+        SnapshotMetrics metrics = snapshot.metrics;
+        stats.record(metrics);
+
+        for (SnapshotListener listener : listeners) {
+            try {
+                listener.onSnapshot(metrics);
+            } catch (RuntimeException ex) {
+                if (PERCY_DEBUG) { log("Snapshot listener failed: " + ex); }
+            }
+        }
+
+        snapshot.result.complete(new SnapshotResult(status, response != null ? response.getStatusCode() : 0,
+            response != null ? response.getBody() : null, metrics));
+    }
+
+    /**
+     * Append a snapshot that could not be posted to the spool in `PERCY_SPOOL_DIR`,
+     * if one is configured, so it can be uploaded later with `replaySpool`.
+     *
+     * @return true if the snapshot was spooled.
      */
-    private void postSnapshot(
-      String domSnapshot,
-      String name,
-      @Nullable List<Integer> widths,
-      Integer minHeight,
-      String url,
-      boolean enableJavaScript,
-      String percyCSS
-    ) {
-        if (!isPercyEnabled) { return; }
-
-        // Build a JSON object to POST back to the agent node process
-        JSONObject json = new JSONObject();
-        json.put("url", url);
-        json.put("name", name);
-        json.put("percyCSS", percyCSS);
-        json.put("minHeight", minHeight);
-        json.put("domSnapshot", domSnapshot);
-        json.put("clientInfo", env.getClientInfo());
-        json.put("enableJavaScript", enableJavaScript);
-        json.put("environmentInfo", env.getEnvironmentInfo());
-        json.put("widths", widths);
-
-        StringEntity entity = new StringEntity(json.toString(), ContentType.APPLICATION_JSON);
-
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            HttpPost request = new HttpPost(PERCY_SERVER_ADDRESS + "/percy/snapshot");
-            request.setEntity(entity);
-            HttpResponse response = httpClient.execute(request);
+    private boolean spoolSnapshot(SnapshotPayload payload) {
+        if (PERCY_SPOOL_DIR == null) { return false; }
+
+        try {
+            SnapshotSpool.forDirectory(Paths.get(PERCY_SPOOL_DIR)).append(payload);
+            log("Spooled snapshot " + payload.name + " to " + PERCY_SPOOL_DIR);
+
+            return true;
         } catch (Exception ex) {
             if (PERCY_DEBUG) { log(ex.toString()); }
-            log("Could not post snapshot " + name);
+
+            return false;
+        }
+    }
+
+    // Release the spool's segment (and its lock), so `replaySpool` can read it
+    private void closeSpool() {
+        if (PERCY_SPOOL_DIR == null) { return; }
+
+        try {
+            SnapshotSpool.forDirectory(Paths.get(PERCY_SPOOL_DIR)).close();
+        } catch (IOException ex) {
+            if (PERCY_DEBUG) { log(ex.toString()); }
+        }
+    }
+
+    /**
+     * Upload snapshots that were spooled to disk because the Percy CLI could not be
+     * reached. Run this while the CLI is running, e.g. from a separate
+     * `percy exec` step after the tests.
+     *
+     * @param directory The spool directory, as set in `PERCY_SPOOL_DIR`.
+     * @return The number of snapshots uploaded.
+     * @throws IOException If the spool could not be read.
+     */
+    public static int replaySpool(Path directory) throws IOException {
+        String serverAddress = System.getenv().getOrDefault("PERCY_SERVER_ADDRESS", "http://localhost:5338");
+        return SnapshotSpool.replay(directory, serverAddress);
+    }
+
+    /**
+     * Capture the page with the DevTools protocol's `DOMSnapshot.captureSnapshot`
+     * instead of PercyDOM, which is much faster on very large pages.
+     *
+     * @return The snapshot in the capture script's shape, with the time spent
+     *         converting it as `serializeTime`, or null if the page needs PercyDOM.
+     */
+    @Nullable
+    private Map<String, Object> captureWithDevTools(JavascriptExecutor jse) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("computedStyles", Collections.emptyList());
+
+        try {
+            // Constructed stylesheets aren't in the DOM at all, so PercyDOM writes them out
+            if (Boolean.TRUE.equals(jse.executeScript(ADOPTED_STYLESHEETS_JS))) {
+                if (PERCY_DEBUG) { log("Page has adopted stylesheets, capturing it with PercyDOM"); }
+                return null;
+            }
+
+            Map<?, ?> snapshot = Selenium4Adapter.executeCdpCommand(driver, "DOMSnapshot.captureSnapshot", params);
+            long start = System.nanoTime();
+            String domSnapshot = DomSnapshotSerializer.serialize(snapshot);
+            if (domSnapshot == null) {
+                if (PERCY_DEBUG) { log("Page has canvases, shadow roots or CSSOM styles, capturing it with PercyDOM"); }
+                return null;
+            }
+
+            Map<String, Object> result = new HashMap<>();
+            result.put("domSnapshot", domSnapshot);
+            result.put("url", DomSnapshotSerializer.url(snapshot));
+            result.put("serializeTime", (System.nanoTime() - start) / 1000000.0);
+
+            return result;
+        } catch (WebDriverException | ClassCastException ex) {
+            if (PERCY_DEBUG) { log("Could not capture a DOMSnapshot, capturing with PercyDOM: " + ex.getMessage()); }
+            return null;
         }
+    }
 
+    /**
+     * Run the capture script, falling back to capturing the DOM whole if the driver
+     * can't run the asynchronous script that compresses it.
+     */
+    private Map<?, ?> runSnapshotJS(JavascriptExecutor jse, String domJs, String enableJavaScript, Capture capture) {
+        if (capture == Capture.GZIP) {
+            try {
+                return loadAndRunSnapshotJS(jse, domJs, enableJavaScript, capture);
+            } catch (WebDriverException ex) {
+                isCompressionFailing = true;
+                if (PERCY_DEBUG) { log("Could not compress the DOM in the browser: " + ex.getMessage()); }
+                capture = Capture.WHOLE;
+            }
+        }
+
+        return loadAndRunSnapshotJS(jse, domJs, enableJavaScript, capture);
     }
 
     /**
-     * @return A String containing the JavaScript needed to instantiate a PercyAgent
-     *         and take a snapshot.
+     * Run the capture script pinned to the session, if the driver pins it in the
+     * browser; otherwise with dom.js from `PERCY_DOM_STORAGE`, if set, and again
+     * with dom.js itself if the page doesn't have it and it isn't stored there (or
+     * can't be evaluated from there, e.g. under a CSP without `unsafe-eval`). Origins
+     * where it can't are remembered for the driver, and skip storage while the
+     * driver stays on them.
      */
-    private String buildSnapshotJS(String enableJavaScript) {
+    private Map<?, ?> loadAndRunSnapshotJS(JavascriptExecutor jse, String domJs, String enableJavaScript, Capture capture) {
+        if (PERCY_SELENIUM4 && capture != Capture.GZIP && Selenium4Adapter.pinsInBrowser(driver)) {
+            String pinKey = capture + ":" + DomScriptCache.hash(domJs);
+            Object key = null;
+            try {
+                hasPinned = true;
+                key = session().pinnedScripts.computeIfAbsent(pinKey,
+                    k -> Selenium4Adapter.pin(jse, buildSnapshotJS(domJs, "arguments[0]", capture, false)));
+                return (Map<?, ?>) Selenium4Adapter.executeScript(jse, key, Boolean.valueOf(enableJavaScript));
+            } catch (WebDriverException ex) {
+                // Pin it again next time, in case the session lost it
+                session().pinnedScripts.remove(pinKey);
+                if (key != null) { unpin(jse, key); }
+                if (PERCY_DEBUG) { log("Could not run the pinned capture script: " + ex.getMessage()); }
+            }
+        }
+
+        DriverSession session = PERCY_DOM_STORAGE != null ? session() : null;
+        if (session != null && !session.evalBlockedOrigins.contains(session.lastOrigin)) {
+            Map<?, ?> result = executeSnapshotJS(jse, buildSnapshotJS(domJs, enableJavaScript, capture, true), capture);
+            String origin = origin(result.get("url"));
+            session.lastOrigin = origin;
+            if (!Boolean.TRUE.equals(result.get("domMissing"))) { return result; }
+
+            // The page's CSP doesn't allow eval, so storage only costs a round trip there
+            if (Boolean.TRUE.equals(result.get("evalBlocked"))) { session.evalBlockedOrigins.add(origin); }
+        }
+
+        Map<?, ?> result = executeSnapshotJS(jse, buildSnapshotJS(domJs, enableJavaScript, capture, false), capture);
+        if (session != null) { session.lastOrigin = origin(result.get("url")); }
+
+        return result;
+    }
+
+    // The origin of a captured page's URL, or "" if it has none
+    private static String origin(@Nullable Object url) {
+        try {
+            URI uri = new URI(String.valueOf(url));
+            return uri.getScheme() + "://" + uri.getRawAuthority();
+        } catch (URISyntaxException ex) {
+            return "";
+        }
+    }
+
+    private DriverSession session() {
+        return SESSIONS.computeIfAbsent(driver, d -> new DriverSession());
+    }
+
+    /**
+     * Unpin the capture scripts pinned to the driver's session, since Chromium runs
+     * every pinned script on each new document. Other instances sharing the driver
+     * pin them again when they need them.
+     */
+    private void unpinScripts() {
+        if (!hasPinned) { return; }
+
+        DriverSession session = SESSIONS.get(driver);
+        if (session == null || session.pinnedScripts.isEmpty()) { return; }
+
+        synchronized (driver) {
+            for (String pinKey : new ArrayList<>(session.pinnedScripts.keySet())) {
+                Object key = session.pinnedScripts.remove(pinKey);
+                if (key != null) { unpin((JavascriptExecutor) driver, key); }
+            }
+        }
+    }
+
+    private void unpin(JavascriptExecutor jse, Object key) {
+        try {
+            Selenium4Adapter.unpin(jse, key);
+        } catch (WebDriverException ex) {
+            // Already gone
+        }
+    }
+
+    private Map<?, ?> executeSnapshotJS(JavascriptExecutor jse, String script, Capture capture) {
+        if (capture != Capture.GZIP) { return (Map<?, ?>) jse.executeScript(script); }
+
+        // Chromium can wait for the compressed DOM without an async script timeout
+        return (Map<?, ?>) (PERCY_SELENIUM4 && Selenium4Adapter.canUseDevTools(driver)
+            ? Selenium4Adapter.evaluateAsync(driver, script)
+            : jse.executeAsyncScript(script));
+    }
+
+    /**
+     * @return A String containing the JavaScript needed to inject dom.js (only when
+     *         the page doesn't have it yet), take a snapshot, and return it along
+     *         with the page URL and in-browser timings (in milliseconds) as
+     *         `{ domSnapshot, url, injectTime, serializeTime }`. With `fromStorage`,
+     *         dom.js is evaluated from `PERCY_DOM_STORAGE` instead of being sent,
+     *         and `{ domMissing, evalBlocked, url }` is returned if it isn't there
+     *         or can't be evaluated; otherwise
+     *         dom.js is stored there for next time. For `SLICES`, the
+     *         snapshot is left in the page for `DOM_SLICE_JS` and only its length is
+     *         returned, as `domLength` in place of `domSnapshot`. For `GZIP`, the
+     *         script is asynchronous and returns the snapshot gzipped and base64
+     *         encoded, as `domGzip` and `domLength`, where the browser has
+     *         `CompressionStream`; compressing counts towards `serializeTime`.
+     */
+    private String buildSnapshotJS(String domJs, String enableJavaScript, Capture capture, boolean fromStorage) {
         StringBuilder jsBuilder = new StringBuilder();
-        jsBuilder.append(String.format("return PercyDOM.serialize({ enableJavaScript: %s })\n", enableJavaScript));
+        if (capture == Capture.GZIP) { jsBuilder.append("var done = arguments[arguments.length - 1];\n"); }
+        jsBuilder.append("var start = performance.now();\n");
+        jsBuilder.append("if (!window.PercyDOM) {\n");
+        if (PERCY_DOM_STORAGE != null) {
+            jsBuilder.append(String.format("var domKey = 'percy-dom-js:%s';\n", DomScriptCache.hash(domJs)));
+        }
+        if (fromStorage) {
+            jsBuilder.append("var stored = null, evalBlocked = false;\n");
+            jsBuilder.append(String.format("try { stored = window.%s.getItem(domKey); } catch (e) {}\n", PERCY_DOM_STORAGE));
+            // Indirect eval, so dom.js runs in the global scope as if it were sent; it
+            // throws under a CSP without `unsafe-eval`
+            jsBuilder.append("if (stored) { try { (0, eval)(stored); } catch (e) { evalBlocked = true; } }\n");
+            String missing = "{ domMissing: true, evalBlocked: evalBlocked, url: location.href }";
+            jsBuilder.append(capture == Capture.GZIP
+                ? "if (!window.PercyDOM) { done(" + missing + "); return; }\n"
+                : "if (!window.PercyDOM) { return " + missing + "; }\n");
+        } else {
+            jsBuilder.append("var percyDomJs = function () {\n");
+            jsBuilder.append(domJs);
+            jsBuilder.append("\n};\n");
+            jsBuilder.append("percyDomJs();\n");
+            if (PERCY_DOM_STORAGE != null) {
+                // Store the function's source, which is dom.js as sent, in place of older versions
+                jsBuilder.append(String.format("try { var storage = window.%s;\n", PERCY_DOM_STORAGE));
+                jsBuilder.append("  for (var i = storage.length - 1; i >= 0; i--) {\n");
+                jsBuilder.append("    var key = storage.key(i);\n");
+                jsBuilder.append("    if (key.indexOf('percy-dom-js:') === 0 && key !== domKey) { storage.removeItem(key); }\n");
+                jsBuilder.append("  }\n");
+                jsBuilder.append("  storage.setItem(domKey, '(' + percyDomJs + ')()');\n");
+                jsBuilder.append("} catch (e) {}\n");
+            }
+        }
+        jsBuilder.append("}\n");
+        jsBuilder.append("var injected = performance.now();\n");
+        jsBuilder.append(String.format("var domSnapshot = PercyDOM.serialize({ enableJavaScript: %s });\n", enableJavaScript));
+        if (capture == Capture.SLICES) {
+            jsBuilder.append("var serialized = performance.now();\n");
+            jsBuilder.append("window.__percyDomSnapshot = domSnapshot;\n");
+            jsBuilder.append("return { domLength: domSnapshot.length, url: location.href, injectTime: injected - start, serializeTime: serialized - injected }\n");
+        } else if (capture == Capture.GZIP) {
+            jsBuilder.append("var result = { url: location.href, injectTime: injected - start };\n");
+            jsBuilder.append("var uncompressed = function () {\n");
+            jsBuilder.append("  result.domSnapshot = domSnapshot;\n");
+            jsBuilder.append("  result.serializeTime = performance.now() - injected;\n");
+            jsBuilder.append("  done(result);\n");
+            jsBuilder.append("};\n");
+            jsBuilder.append("if (typeof CompressionStream === 'undefined') { uncompressed(); } else {\n");
+            jsBuilder.append("  new Response(new Blob([domSnapshot]).stream().pipeThrough(new CompressionStream('gzip'))).arrayBuffer().then(function (buffer) {\n");
+            jsBuilder.append("    var bytes = new Uint8Array(buffer), binary = '';\n");
+            // Spread the bytes into fromCharCode a chunk at a time, to stay under argument limits
+            jsBuilder.append("    for (var i = 0; i < bytes.length; i += 32768) { binary += String.fromCharCode.apply(null, bytes.subarray(i, i + 32768)); }\n");
+            jsBuilder.append("    result.domGzip = btoa(binary);\n");
+            jsBuilder.append("    result.domLength = domSnapshot.length;\n");
+            jsBuilder.append("    result.serializeTime = performance.now() - injected;\n");
+            jsBuilder.append("    done(result);\n");
+            jsBuilder.append("  }, uncompressed);\n");
+            jsBuilder.append("}\n");
+        } else {
+            jsBuilder.append("return { domSnapshot: domSnapshot, url: location.href, injectTime: injected - start, serializeTime: performance.now() - injected }\n");
+        }
 
         return jsBuilder.toString();
     }
 
+    @Nullable
+    private static String domStorage(String storage) {
+        switch (storage) {
+            case "session": return "sessionStorage";
+            case "local": return "localStorage";
+            default: return null;
+        }
+    }
+
+    // Scripts return numbers as Long or Double, depending on the value
+    private static long millisToNanos(@Nullable Object millis) {
+        return millis instanceof Number ? (long) (((Number) millis).doubleValue() * 1000000) : 0;
+    }
+
     private void log(String message) {
-        System.out.println(LABEL + " " + message);
+        PercyLog.log(message);
+    }
+
+    /**
+     * How the serialized DOM is brought back from the browser.
+     */
+    private enum Capture {
+        // In one script result
+        WHOLE,
+        // A `PERCY_DOM_CHUNK_SIZE` slice per script call
+        SLICES,
+        // Gzipped in the browser, in one asynchronous script result
+        GZIP
+    }
+
+    /**
+     * What the SDK keeps in a driver's browser session.
+     */
+    private static final class DriverSession {
+        // Capture scripts pinned with Selenium 4, by capture mode and dom.js hash
+        final Map<String, Object> pinnedScripts = new ConcurrentHashMap<>();
+
+        // Origins whose pages can't evaluate dom.js from storage
+        final Set<String> evalBlockedOrigins = ConcurrentHashMap.newKeySet();
+
+        // Origin of the page captured last, where the next snapshot is likely taken
+        volatile String lastOrigin = "";
+    }
+
+    /**
+     * A captured snapshot on its way to the CLI.
+     */
+    private static final class PendingSnapshot {
+        // Replaced by a spilled copy if the snapshot is held under a memory budget
+        volatile SnapshotPayload payload;
+        // The payload's share of the memory budget
+        final MemoryBudget.Reservation reservation;
+        final SnapshotMetrics metrics;
+        // Taken with `snapshotAsync`, so uploaded in the background
+        final boolean isAsync;
+        final CompletableFuture<SnapshotResult> result = new CompletableFuture<>();
+
+        PendingSnapshot(SnapshotPayload payload, MemoryBudget.Reservation reservation, SnapshotMetrics metrics,
+                boolean isAsync) {
+            this.payload = payload;
+            this.reservation = reservation;
+            this.metrics = metrics;
+            this.isAsync = isAsync;
+        }
+
+        /**
+         * Give back the payload's memory and delete its spilled DOM, once it is done with.
+         */
+        void release() {
+            reservation.release();
+            payload.discard();
+        }
     }
 }
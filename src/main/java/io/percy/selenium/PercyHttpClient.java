@@ -0,0 +1,71 @@
+package io.percy.selenium;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Package-private holder for the HTTP client shared by every Percy instance in the JVM.
+ *
+ * The client is created the first time it is used and keeps connections to the CLI
+ * alive between requests, so snapshots don't pay for a new TCP connection each time.
+ */
+class PercyHttpClient {
+    // Connect timeout in milliseconds
+    private static final int CONNECT_TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_CONNECT_TIMEOUT", "5000"));
+
+    // Read (socket) timeout in milliseconds. 0 waits indefinitely, since the CLI
+    // may take a while to process a snapshot.
+    private static final int READ_TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_READ_TIMEOUT", "0"));
+
+    // Maximum number of pooled connections
+    private static final int MAX_CONNECTIONS = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_MAX_CONNECTIONS", "16"));
+
+    // How long idle connections are kept when the CLI does not send a Keep-Alive
+    // header. Node closes idle sockets after 5 seconds by default.
+    private static final long KEEP_ALIVE = Long.parseLong(System.getenv().getOrDefault("PERCY_CLIENT_KEEP_ALIVE", "4000"));
+
+    private PercyHttpClient() {}
+
+    /**
+     * @return The shared client. Callers must consume response entities so the
+     *         connection is returned to the pool, and must not close the client.
+     */
+    static CloseableHttpClient get() {
+        return Holder.CLIENT;
+    }
+
+    // Initialization-on-demand holder, so the client is built lazily and exactly once.
+    private static class Holder {
+        static final CloseableHttpClient CLIENT = create();
+    }
+
+    private static CloseableHttpClient create() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        // Every request goes to the same CLI, so one route may use the whole pool.
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        // Check connections that sat idle before reusing them, in case the CLI closed them.
+        connectionManager.setValidateAfterInactivity(1000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT)
+            .setConnectionRequestTimeout(CONNECT_TIMEOUT)
+            .setSocketTimeout(READ_TIMEOUT)
+            .build();
+
+        ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : KEEP_ALIVE;
+        };
+
+        return HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(keepAlive)
+            .build();
+    }
+}
@@ -0,0 +1,23 @@
+package io.percy.selenium;
+
+/**
+ * Package-private logger for code that runs outside a Percy instance, such as the
+ * shared healthcheck. Uses the same label and log level as `Percy`.
+ */
+class PercyLog {
+    // Determine if we're debug logging
+    static final boolean DEBUG = System.getenv().getOrDefault("PERCY_LOGLEVEL", "info").equals("debug");
+
+    // for logging
+    private static final String LABEL = "[\u001b[35m" + (DEBUG ? "percy:java" : "percy") + "\u001b[39m]";
+
+    private PercyLog() {}
+
+    static void log(String message) {
+        System.out.println(LABEL + " " + message);
+    }
+
+    static void debug(String message) {
+        if (DEBUG) { log(message); }
+    }
+}
@@ -0,0 +1,16 @@
+package io.percy.selenium;
+
+/**
+ * Whether a Percy instance is taking snapshots, as returned by `Percy.getState()`.
+ */
+public enum PercyState {
+    // Waiting for the first healthcheck of the CLI
+    PROBING,
+    // The CLI is running; snapshots are captured and uploaded
+    ENABLED,
+    // The CLI can't be reached, but snapshots are still captured with a cached dom.js
+    // and held (or spooled) until it is back
+    DEGRADED,
+    // Snapshots are skipped, either for good or until a retried healthcheck succeeds
+    DISABLED
+}
@@ -0,0 +1,106 @@
+package io.percy.selenium;
+
+import java.time.Duration;
+
+/**
+ * Cumulative snapshot metrics for a Percy instance, as of the moment `Percy.stats()`
+ * was called.
+ *
+ * Percentiles are computed over the most recent snapshots (see `StatsRecorder`),
+ * so they follow the current behaviour of a long test run.
+ */
+public final class PercyStats {
+    private final long snapshots;
+    private final long failures;
+    private final long injectNanos;
+    private final long serializeNanos;
+    private final long transferNanos;
+    private final long encodeNanos;
+    private final long postNanos;
+    private final long domChars;
+    private final long requestBytes;
+    private final long retries;
+    private final long circuitTrips;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long bufferedBytes;
+    private final long peakBufferedBytes;
+
+    PercyStats(long snapshots, long failures, long injectNanos, long serializeNanos, long transferNanos,
+               long encodeNanos, long postNanos, long domChars, long requestBytes, long retries,
+               long circuitTrips, long p50Nanos, long p90Nanos, long p99Nanos, long bufferedBytes,
+               long peakBufferedBytes) {
+        this.snapshots = snapshots;
+        this.failures = failures;
+        this.injectNanos = injectNanos;
+        this.serializeNanos = serializeNanos;
+        this.transferNanos = transferNanos;
+        this.encodeNanos = encodeNanos;
+        this.postNanos = postNanos;
+        this.domChars = domChars;
+        this.requestBytes = requestBytes;
+        this.retries = retries;
+        this.circuitTrips = circuitTrips;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+        this.bufferedBytes = bufferedBytes;
+        this.peakBufferedBytes = peakBufferedBytes;
+    }
+
+    /** @return Number of snapshots taken, including failed ones. */
+    public long getSnapshots() { return snapshots; }
+
+    /** @return Number of snapshots the CLI did not accept. */
+    public long getFailures() { return failures; }
+
+    /** @return Total time browsers spent evaluating dom.js. */
+    public Duration getTotalInjectTime() { return Duration.ofNanos(injectNanos); }
+
+    /** @return Total time browsers spent serializing DOMs. */
+    public Duration getTotalSerializeTime() { return Duration.ofNanos(serializeNanos); }
+
+    /** @return Total WebDriver transfer time. */
+    public Duration getTotalTransferTime() { return Duration.ofNanos(transferNanos); }
+
+    /** @return Total time spent encoding and writing request bodies. */
+    public Duration getTotalEncodeTime() { return Duration.ofNanos(encodeNanos); }
+
+    /** @return Total time spent waiting on the CLI. */
+    public Duration getTotalPostTime() { return Duration.ofNanos(postNanos); }
+
+    /** @return Total length of serialized DOMs, in characters. */
+    public long getTotalDomChars() { return domChars; }
+
+    /** @return Total size of request bodies sent to the CLI. */
+    public long getTotalRequestBytes() { return requestBytes; }
+
+    /** @return Total number of upload retries. */
+    public long getRetries() { return retries; }
+
+    /** @return Number of times an upload opened the circuit breaker. */
+    public long getCircuitTrips() { return circuitTrips; }
+
+    /** @return Median time per snapshot. */
+    public Duration getP50() { return Duration.ofNanos(p50Nanos); }
+
+    /** @return 90th percentile time per snapshot. */
+    public Duration getP90() { return Duration.ofNanos(p90Nanos); }
+
+    /** @return 99th percentile time per snapshot. */
+    public Duration getP99() { return Duration.ofNanos(p99Nanos); }
+
+    /** @return Estimated size of the snapshots captured but not yet uploaded, across the JVM. */
+    public long getBufferedBytes() { return bufferedBytes; }
+
+    /** @return The most `getBufferedBytes` has been at once, across the JVM. */
+    public long getPeakBufferedBytes() { return peakBufferedBytes; }
+
+    @Override
+    public String toString() {
+        return String.format("%d snapshots (%d failed), p50 %dms, p90 %dms, p99 %dms, %d request bytes, %d retries, %d circuit trips, %d bytes buffered (peak %d)",
+            snapshots, failures, p50Nanos / 1000000, p90Nanos / 1000000, p99Nanos / 1000000, requestBytes, retries, circuitTrips,
+            bufferedBytes, peakBufferedBytes);
+    }
+}
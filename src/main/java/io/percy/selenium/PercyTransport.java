@@ -0,0 +1,55 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+/**
+ * How the SDK talks to the Percy CLI.
+ *
+ * Implementations are found with `java.util.ServiceLoader`: list the class in
+ * `META-INF/services/io.percy.selenium.PercyTransport` and give it a public no-arg
+ * constructor. For each CLI address, the first transport that `supports` it is
+ * used, unless `PERCY_TRANSPORT` names another one. Transports are shared by every
+ * Percy instance and thread in the JVM, so they must be thread-safe.
+ *
+ * Methods throw `IOException` when the CLI can't be reached; any response,
+ * whatever its status, is returned.
+ */
+public interface PercyTransport {
+    /**
+     * @return A short name to select this transport with `PERCY_TRANSPORT`.
+     */
+    String name();
+
+    /**
+     * @param serverAddress A CLI address, such as `http://localhost:5338`.
+     * @return true if this transport can talk to that address.
+     */
+    boolean supports(String serverAddress);
+
+    /**
+     * `GET /percy/healthcheck`.
+     *
+     * @param timeoutMillis Give up if connecting or waiting for the response takes
+     *                      longer than this.
+     */
+    TransportResponse healthcheck(String serverAddress, int timeoutMillis) throws IOException;
+
+    /**
+     * `GET /percy/dom.js`.
+     *
+     * @param etag The ETag of a cached copy, sent as `If-None-Match`, or null.
+     */
+    TransportResponse fetchDomScript(String serverAddress, @Nullable String etag) throws IOException;
+
+    /**
+     * `POST /percy/snapshot` with a single snapshot.
+     */
+    TransportResponse postSnapshot(String serverAddress, RequestBody body) throws IOException;
+
+    /**
+     * `POST /percy/snapshot` with several snapshots in one body.
+     */
+    TransportResponse postBatch(String serverAddress, RequestBody body) throws IOException;
+}
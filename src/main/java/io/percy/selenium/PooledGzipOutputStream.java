@@ -0,0 +1,93 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Package-private gzip stream that borrows its `Deflater` from a JVM-wide pool.
+ *
+ * `GZIPOutputStream` allocates (and frees) a native zlib stream for every body it
+ * writes. This class writes the same gzip framing around a pooled raw `Deflater`,
+ * so compressing many snapshots reuses a handful of zlib streams.
+ */
+class PooledGzipOutputStream extends DeflaterOutputStream {
+    // Compression level. Bodies only travel to the local CLI, so favour speed.
+    private static final int LEVEL = Integer.parseInt(System.getenv().getOrDefault("PERCY_GZIP_LEVEL", String.valueOf(Deflater.BEST_SPEED)));
+
+    // Idle deflaters kept for reuse; one per core is enough for concurrent uploads
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors();
+    private static final Queue<Deflater> POOL = new ConcurrentLinkedQueue<>();
+
+    // Gzip member header: magic, CM=deflate, no flags, no mtime, XFL=0, OS=unknown
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final CRC32 crc = new CRC32();
+    private boolean finished = false;
+    private boolean closed = false;
+
+    PooledGzipOutputStream(OutputStream out) throws IOException {
+        super(out, borrow(), 8192);
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    /**
+     * Finish the compressed data and write the gzip trailer, without closing the
+     * underlying stream.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) { return; }
+
+        super.finish();
+        writeInt((int) crc.getValue());
+        writeInt((int) def.getBytesRead());
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) { return; }
+
+        closed = true;
+        try {
+            finish();
+        } finally {
+            release(def);
+            out.close();
+        }
+    }
+
+    // Gzip trailer fields are little-endian
+    private void writeInt(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    private static Deflater borrow() {
+        Deflater deflater = POOL.poll();
+        // nowrap: raw deflate data, since we write the gzip framing ourselves
+        return deflater != null ? deflater : new Deflater(LEVEL, true);
+    }
+
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        if (POOL.size() < MAX_POOLED) {
+            POOL.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * A request body for a `PercyTransport` to send. Bodies are streamed: they are
+ * encoded while they are written, and can be written more than once.
+ */
+public interface RequestBody {
+    /**
+     * Write the body to `out`. Does not close `out`.
+     */
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @return The body's length in bytes, or -1 if it isn't known until the body has
+     *         been written, in which case it should be sent chunked.
+     */
+    default long contentLength() {
+        return -1;
+    }
+
+    /**
+     * @return The `Content-Type` header value.
+     */
+    default String contentType() {
+        return "application/json";
+    }
+
+    /**
+     * @return The `Content-Encoding` header value, or null if not encoded.
+     */
+    @Nullable
+    default String contentEncoding() {
+        return null;
+    }
+}
@@ -0,0 +1,51 @@
+package io.percy.selenium;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Package-private retry policy for snapshot uploads.
+ *
+ * Connection errors and 5xx responses are retried up to `PERCY_UPLOAD_RETRIES`
+ * times. The delay before retry `n` is drawn uniformly from zero to
+ * `PERCY_UPLOAD_RETRY_DELAY * 2^n` milliseconds, capped at
+ * `PERCY_UPLOAD_RETRY_MAX_DELAY` ("full jitter"), so many test threads that hit
+ * the same hiccup don't all come back at once.
+ */
+class RetryPolicy {
+    // Retries after the first attempt
+    static final int RETRIES = Integer.parseInt(System.getenv().getOrDefault("PERCY_UPLOAD_RETRIES", "3"));
+
+    // Upper bound of the first delay, in milliseconds
+    private static final long BASE_DELAY = Long.parseLong(System.getenv().getOrDefault("PERCY_UPLOAD_RETRY_DELAY", "250"));
+
+    // Upper bound of any delay, in milliseconds
+    private static final long MAX_DELAY = Long.parseLong(System.getenv().getOrDefault("PERCY_UPLOAD_RETRY_MAX_DELAY", "5000"));
+
+    private RetryPolicy() {}
+
+    /**
+     * @return true if a response with this status is worth retrying.
+     */
+    static boolean isRetryable(int statusCode) {
+        return statusCode >= 500;
+    }
+
+    /**
+     * Sleep before retry `attempt` (0 for the first retry).
+     *
+     * @return false if the thread was interrupted, in which case nothing should be
+     *         retried.
+     */
+    static boolean backoff(int attempt) {
+        long cap = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 30));
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
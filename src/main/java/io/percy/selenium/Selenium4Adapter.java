@@ -0,0 +1,153 @@
+package io.percy.selenium;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+/**
+ * Package-private access to Selenium 4 APIs, which the SDK can't compile against
+ * while it supports Selenium 3. Everything is looked up reflectively on the
+ * driver's class, so with Selenium 3 on the classpath `pinsInBrowser` and
+ * `canUseDevTools` are simply false.
+ *
+ * Chromium drivers pin scripts (`JavascriptExecutor.pin`) in the browser through
+ * the DevTools protocol, so a pinned script is sent once and then run by key, even
+ * across navigations. Other drivers only remember the script and send it whole
+ * every time, so pinning saves nothing there.
+ *
+ * `Runtime.evaluate` runs a script through the DevTools protocol and can wait for
+ * a promise, so it needs no async script timeout; other DevTools commands, like
+ * `DOMSnapshot.captureSnapshot`, go through `executeCdpCommand`.
+ */
+class Selenium4Adapter {
+    // JavascriptExecutor's pinning methods (added in Selenium 4), by driver class
+    private static final ClassValue<Pinning> PINNING = new ClassValue<Pinning>() {
+        @Override
+        protected Pinning computeValue(Class<?> type) {
+            return new Pinning(type);
+        }
+    };
+
+    private Selenium4Adapter() {}
+
+    /**
+     * @return true if the driver pins scripts in the browser, i.e. it is a Chromium
+     *         driver from Selenium 4.
+     */
+    static boolean pinsInBrowser(WebDriver driver) {
+        Pinning pinning = PINNING.get(driver.getClass());
+        return pinning.pin != null && pinning.unpin != null && pinning.executePinned != null && canUseDevTools(driver);
+    }
+
+    /**
+     * Pin a script, which then runs with `arguments` like any other script.
+     *
+     * @return The pinned script's key, for `executeScript` and `unpin`.
+     */
+    static Object pin(JavascriptExecutor jse, String script) {
+        return invoke(PINNING.get(jse.getClass()).pin, jse, script);
+    }
+
+    static void unpin(JavascriptExecutor jse, Object key) {
+        invoke(PINNING.get(jse.getClass()).unpin, jse, key);
+    }
+
+    @Nullable
+    static Object executeScript(JavascriptExecutor jse, Object key, Object... args) {
+        return invoke(PINNING.get(jse.getClass()).executePinned, jse, key, args);
+    }
+
+    /**
+     * @return true if the driver speaks the DevTools protocol, i.e. it is a
+     *         Chromium driver from Selenium 4.
+     */
+    static boolean canUseDevTools(WebDriver driver) {
+        return cdpCommand(driver) != null;
+    }
+
+    /**
+     * Run an async script, which calls `arguments[arguments.length - 1]` with its
+     * result like one run with `executeAsyncScript`, through `Runtime.evaluate`.
+     *
+     * @return The script's result, by value.
+     */
+    @Nullable
+    static Object evaluateAsync(WebDriver driver, String script) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("expression", "new Promise(function (done) {\n(function () {\n" + script + "\n}).call(window, done);\n})");
+        params.put("returnByValue", true);
+        params.put("awaitPromise", true);
+
+        Map<?, ?> response = executeCdpCommand(driver, "Runtime.evaluate", params);
+        if (response.get("exceptionDetails") != null) {
+            throw new WebDriverException("Runtime.evaluate failed: " + response.get("exceptionDetails"));
+        }
+
+        Map<?, ?> result = (Map<?, ?>) response.get("result");
+        return result != null ? result.get("value") : null;
+    }
+
+    /**
+     * Send a DevTools protocol command.
+     *
+     * @return The command's result.
+     */
+    static Map<?, ?> executeCdpCommand(WebDriver driver, String command, Map<String, Object> params) {
+        Map<?, ?> response = (Map<?, ?>) invoke(cdpCommand(driver), driver, command, params);
+        if (response == null) { throw new WebDriverException(command + " returned nothing"); }
+
+        return response;
+    }
+
+    // ChromiumDriver.executeCdpCommand(String, Map), if the driver has it
+    @Nullable
+    private static Method cdpCommand(WebDriver driver) {
+        return findMethod(driver.getClass(), "executeCdpCommand", String.class, Map.class);
+    }
+
+    @Nullable
+    private static Object invoke(@Nullable Method method, Object target, Object... args) {
+        if (method == null) { throw new UnsupportedOperationException("Needs Selenium 4"); }
+
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            throw new WebDriverException(cause);
+        } catch (IllegalAccessException ex) {
+            throw new WebDriverException(ex);
+        }
+    }
+
+    @Nullable
+    private static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    // A driver class's pinning methods; null with Selenium 3
+    private static final class Pinning {
+        @Nullable final Method pin;
+        @Nullable final Method unpin;
+        @Nullable final Method executePinned;
+
+        Pinning(Class<?> type) {
+            pin = findMethod(type, "pin", String.class);
+            // Selenium 4's ScriptKey
+            Class<?> key = pin != null ? pin.getReturnType() : null;
+            unpin = key != null ? findMethod(type, "unpin", key) : null;
+            executePinned = key != null ? findMethod(type, "executeScript", key, Object[].class) : null;
+        }
+    }
+}
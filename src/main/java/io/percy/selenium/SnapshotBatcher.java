@@ -0,0 +1,104 @@
+package io.percy.selenium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private collector of snapshots into batches, so that many small
+ * snapshots taken in quick succession cost one request instead of one each.
+ *
+ * A batch is handed to `send` once it holds `maxItems` snapshots or `maxBytes`
+ * (estimated) bytes, or `maxDelayMillis` after its first snapshot was added,
+ * whichever comes first. `send` runs on the thread that filled the batch, or on a
+ * shared timer thread, so it should only queue the batch for upload.
+ */
+class SnapshotBatcher<T> {
+    interface Sender<T> {
+        /**
+         * @param canWait false on the shared timer thread, which must not wait for
+         *                room in an upload queue.
+         */
+        void send(List<T> batch, boolean canWait);
+    }
+
+    // Sends batches that are still open when their delay is up; shared by every batcher
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "percy-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxItems;
+    private final long maxBytes;
+    private final long maxDelayMillis;
+    private final ToLongFunction<T> size;
+    private final Sender<T> send;
+
+    // The open batch and its state. Guarded by this.
+    private List<T> batch = new ArrayList<>();
+    private long bytes;
+    @Nullable private ScheduledFuture<?> deadline;
+
+    SnapshotBatcher(int maxItems, long maxBytes, long maxDelayMillis, ToLongFunction<T> size, Sender<T> send) {
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.maxDelayMillis = maxDelayMillis;
+        this.size = size;
+        this.send = send;
+    }
+
+    /**
+     * Add a snapshot to the open batch, sending the batch if that fills it.
+     */
+    void add(T snapshot) {
+        List<T> full = null;
+        synchronized (this) {
+            batch.add(snapshot);
+            bytes += size.applyAsLong(snapshot);
+
+            if (batch.size() >= maxItems || bytes >= maxBytes) {
+                full = take();
+            } else if (deadline == null) {
+                deadline = TIMER.schedule(() -> flush(false), maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full != null) { send.send(full, true); }
+    }
+
+    /**
+     * Send the open batch now, if it has any snapshots.
+     */
+    void flush() {
+        flush(true);
+    }
+
+    private void flush(boolean canWait) {
+        List<T> open;
+        synchronized (this) {
+            if (batch.isEmpty()) { return; }
+            open = take();
+        }
+
+        send.send(open, canWait);
+    }
+
+    private List<T> take() {
+        List<T> taken = batch;
+        batch = new ArrayList<>();
+        bytes = 0;
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+
+        return taken;
+    }
+}
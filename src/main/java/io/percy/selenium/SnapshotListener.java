@@ -0,0 +1,15 @@
+package io.percy.selenium;
+
+/**
+ * Receives timing metrics for every snapshot a Percy instance takes.
+ *
+ * Listeners are called on the thread that finished the snapshot's upload, which is
+ * a background thread when uploads are asynchronous. They should return quickly.
+ */
+@FunctionalInterface
+public interface SnapshotListener {
+    /**
+     * @param metrics Timings and sizes for the snapshot that just finished.
+     */
+    void onSnapshot(SnapshotMetrics metrics);
+}
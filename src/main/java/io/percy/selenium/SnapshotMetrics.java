@@ -0,0 +1,83 @@
+package io.percy.selenium;
+
+import java.time.Duration;
+
+/**
+ * Timings and sizes for one snapshot, split by phase.
+ *
+ * Capture phases are measured around the single WebDriver call that injects dom.js
+ * and serializes the page: `inject` and `serialize` are timed inside the browser,
+ * and `transfer` is the rest of that round trip. Because the request body is
+ * streamed, `encode` covers encoding the body and writing it to the connection,
+ * and `post` is the time from then until the CLI responded.
+ */
+public final class SnapshotMetrics {
+    private final String name;
+
+    // Filled in while the snapshot is captured and uploaded, then only read
+    long injectNanos;
+    long serializeNanos;
+    long transferNanos;
+    long encodeNanos;
+    long postNanos;
+    long domChars;
+    long requestBytes;
+    int retries;
+    int batchSize = 1;
+    boolean uploaded;
+
+    SnapshotMetrics(String name) {
+        this.name = name;
+    }
+
+    /** @return The snapshot name. */
+    public String getName() { return name; }
+
+    /** @return Time the browser spent evaluating dom.js; zero when it was already loaded. */
+    public Duration getInjectTime() { return Duration.ofNanos(injectNanos); }
+
+    /** @return Time the browser spent serializing the DOM. */
+    public Duration getSerializeTime() { return Duration.ofNanos(serializeNanos); }
+
+    /** @return WebDriver round trip time, not counting the time spent in the browser. */
+    public Duration getTransferTime() { return Duration.ofNanos(transferNanos); }
+
+    /** @return Time spent encoding the request body and writing it to the connection. */
+    public Duration getEncodeTime() { return Duration.ofNanos(encodeNanos); }
+
+    /** @return Time from the request body being sent until the CLI responded. */
+    public Duration getPostTime() { return Duration.ofNanos(postNanos); }
+
+    /** @return The sum of every phase. */
+    public Duration getTotalTime() { return Duration.ofNanos(totalNanos()); }
+
+    /** @return Length of the serialized DOM, in characters. */
+    public long getDomChars() { return domChars; }
+
+    /**
+     * @return Size of the request body sent to the CLI, after any compression. For a
+     *         snapshot sent in a batch, its part of the body before compression.
+     */
+    public long getRequestBytes() { return requestBytes; }
+
+    /** @return Number of times the upload was retried after a connection error or 5xx response. */
+    public int getRetries() { return retries; }
+
+    /** @return Number of snapshots in the request this one was sent in; 1 if it was sent on its own. */
+    public int getBatchSize() { return batchSize; }
+
+    /** @return true if the CLI accepted the snapshot. */
+    public boolean isUploaded() { return uploaded; }
+
+    long totalNanos() {
+        return injectNanos + serializeNanos + transferNanos + encodeNanos + postNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: inject %dms, serialize %dms, transfer %dms, encode %dms, post %dms, %d chars, %d bytes, %d retries%s%s",
+            name, injectNanos / 1000000, serializeNanos / 1000000, transferNanos / 1000000, encodeNanos / 1000000,
+            postNanos / 1000000, domChars, requestBytes, retries, batchSize > 1 ? ", batch of " + batchSize : "",
+            uploaded ? "" : " (not uploaded)");
+    }
+}
@@ -0,0 +1,296 @@
+package io.percy.selenium;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nullable;
+
+import org.json.JSONObject;
+
+/**
+ * Package-private snapshot request body: the serialized DOM plus its envelope fields.
+ *
+ * The DOM can be many megabytes, so it is never copied into a `JSONObject` or a
+ * payload `String`. Instead `writeTo` escapes it straight into the output stream,
+ * keeping peak memory close to the one copy of the DOM held here. Under memory
+ * pressure even that copy can be `spill`ed to a temp file, and a DOM read from the
+ * browser in slices never has to be held whole at all. A DOM compressed in the
+ * browser is kept compressed and only inflated as it is written.
+ */
+class SnapshotPayload implements RequestBody {
+    /**
+     * A DOM read a slice at a time.
+     */
+    interface DomSlices {
+        /**
+         * @return The next slice, or null after the last one.
+         */
+        @Nullable
+        String next() throws IOException;
+    }
+
+    // Writes the escaped DOM
+    private interface DomWriter {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    final String name;
+    final String url;
+    @Nullable final String domSnapshot;
+    // The DOM, already escaped as a JSON string, when it was spilled to disk
+    @Nullable private final Path spilledDom;
+    // The DOM, gzipped, when it was compressed in the browser
+    @Nullable private final byte[] gzippedDom;
+    // Size of a spilled (in bytes) or gzipped (in characters) DOM
+    private final long domSize;
+    @Nullable final List<Integer> widths;
+    @Nullable final Integer minHeight;
+    final boolean enableJavaScript;
+    @Nullable final String percyCSS;
+    final String clientInfo;
+    final String environmentInfo;
+
+    SnapshotPayload(
+      String name,
+      String url,
+      @Nullable String domSnapshot,
+      @Nullable List<Integer> widths,
+      @Nullable Integer minHeight,
+      boolean enableJavaScript,
+      @Nullable String percyCSS,
+      String clientInfo,
+      String environmentInfo
+    ) {
+        this(name, url, domSnapshot, null, null, 0, widths, minHeight, enableJavaScript, percyCSS, clientInfo,
+            environmentInfo);
+    }
+
+    private SnapshotPayload(
+      String name,
+      String url,
+      @Nullable String domSnapshot,
+      @Nullable Path spilledDom,
+      @Nullable byte[] gzippedDom,
+      long domSize,
+      @Nullable List<Integer> widths,
+      @Nullable Integer minHeight,
+      boolean enableJavaScript,
+      @Nullable String percyCSS,
+      String clientInfo,
+      String environmentInfo
+    ) {
+        this.name = name;
+        this.url = url;
+        this.domSnapshot = domSnapshot;
+        this.spilledDom = spilledDom;
+        this.gzippedDom = gzippedDom;
+        this.domSize = domSize;
+        this.widths = widths;
+        this.minHeight = minHeight;
+        this.enableJavaScript = enableJavaScript;
+        this.percyCSS = percyCSS;
+        this.clientInfo = clientInfo;
+        this.environmentInfo = environmentInfo;
+    }
+
+    /**
+     * @return A rough size of the encoded body in bytes, for deciding whether it is
+     *         worth compressing. Computing the exact size would need a full pass
+     *         over the DOM.
+     */
+    long estimatedSize() {
+        return (spilledDom != null || gzippedDom != null ? domSize : domSnapshot != null ? domSnapshot.length() : 0) + 1024;
+    }
+
+    /**
+     * @return A rough size of what the payload keeps on the heap: the estimated size,
+     *         less a DOM that was spilled to disk.
+     */
+    long heapSize() {
+        return spilledDom != null ? estimatedSize() - domSize : estimatedSize();
+    }
+
+    /**
+     * @param gzippedDom The DOM, gzipped as UTF-8.
+     * @param domLength  The DOM's length in characters.
+     * @return A payload that keeps the DOM compressed until it is written. This
+     *         payload's own DOM is ignored.
+     */
+    SnapshotPayload withGzippedDom(byte[] gzippedDom, long domLength) {
+        return new SnapshotPayload(name, url, null, null, gzippedDom, domLength, widths, minHeight, enableJavaScript,
+            percyCSS, clientInfo, environmentInfo);
+    }
+
+    /**
+     * Write the DOM, escaped, to a new file in `directory`, so the DOM string can be
+     * garbage collected.
+     *
+     * @return A payload that streams the DOM from that file, or this payload if it
+     *         was already spilled. Call `discard` on it once it has been sent.
+     */
+    SnapshotPayload spill(Path directory) throws IOException {
+        if (spilledDom != null) { return this; }
+
+        return spill(directory, this::writeDom);
+    }
+
+    /**
+     * Escape a DOM into a new file in `directory` as its slices arrive, so no more
+     * than a slice of it is in memory at once. This payload's own DOM is ignored.
+     *
+     * @return A payload that streams the DOM from that file. Call `discard` on it
+     *         once it has been sent.
+     */
+    SnapshotPayload spill(Path directory, DomSlices slices) throws IOException {
+        return spill(directory, writer -> {
+            writer.write('"');
+            for (String slice = slices.next(); slice != null; slice = slices.next()) {
+                writeJsonChars(writer, slice);
+            }
+            writer.write('"');
+        });
+    }
+
+    private SnapshotPayload spill(Path directory, DomWriter dom) throws IOException {
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "snapshot-", ".json");
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), 65536)) {
+            dom.writeTo(writer);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+
+        return new SnapshotPayload(name, url, null, file, null, Files.size(file), widths, minHeight, enableJavaScript,
+            percyCSS, clientInfo, environmentInfo);
+    }
+
+    /**
+     * @return true if the DOM was spilled to disk.
+     */
+    boolean isSpilled() {
+        return spilledDom != null;
+    }
+
+    /**
+     * Delete the spilled DOM, if any. The payload can't be written afterwards.
+     */
+    void discard() {
+        if (spilledDom == null) { return; }
+
+        try {
+            Files.deleteIfExists(spilledDom);
+        } catch (IOException ex) {
+            // Left for the OS to clean up with the rest of the temp directory
+        }
+    }
+
+    /**
+     * Write the JSON body to `out` in a single pass. Does not close `out`.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        // Small fields go through JSONObject; null values are left out, as before
+        JSONObject envelope = new JSONObject();
+        envelope.put("url", url);
+        envelope.put("name", name);
+        envelope.put("percyCSS", percyCSS);
+        envelope.put("minHeight", minHeight);
+        envelope.put("clientInfo", clientInfo);
+        envelope.put("enableJavaScript", enableJavaScript);
+        envelope.put("environmentInfo", environmentInfo);
+        envelope.put("widths", widths);
+        String fields = envelope.toString();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16384);
+        writer.write("{\"domSnapshot\":");
+        if (spilledDom != null) {
+            writer.flush();
+            Files.copy(spilledDom, out);
+        } else {
+            writeDom(writer);
+        }
+        if (fields.length() > 2) {
+            // Splice the envelope's members in after the DOM: `{"a":1}` -> `,"a":1}`
+            writer.write(',');
+            writer.write(fields, 1, fields.length() - 1);
+        } else {
+            writer.write('}');
+        }
+        writer.flush();
+    }
+
+    // Write the DOM held in memory as a JSON string, inflating it a buffer at a time
+    // if it is gzipped
+    private void writeDom(Writer writer) throws IOException {
+        if (gzippedDom == null) {
+            writeJsonString(writer, domSnapshot);
+            return;
+        }
+
+        writer.write('"');
+        try (Reader dom = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(gzippedDom)), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            for (int read = dom.read(buffer); read != -1; read = dom.read(buffer)) {
+                writeJsonChars(writer, new String(buffer, 0, read));
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Write `value` as a quoted JSON string, copying runs of characters that need
+     * no escaping straight through.
+     */
+    static void writeJsonString(Writer writer, @Nullable String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+
+        writer.write('"');
+        writeJsonChars(writer, value);
+        writer.write('"');
+    }
+
+    /**
+     * Write `value` escaped for a JSON string, without the quotes. A surrogate pair
+     * split between two calls is put back together by the writer's encoder.
+     */
+    static void writeJsonChars(Writer writer, String value) throws IOException {
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') { continue; }
+
+            writer.write(value, start, i - start);
+            start = i + 1;
+
+            switch (c) {
+                case '"': writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\t': writer.write("\\t"); break;
+                case '\b': writer.write("\\b"); break;
+                case '\f': writer.write("\\f"); break;
+                default: writer.write(String.format("\\u%04x", (int) c));
+            }
+        }
+
+        writer.write(value, start, length - start);
+    }
+}
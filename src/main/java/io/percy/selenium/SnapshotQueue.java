@@ -0,0 +1,171 @@
+package io.percy.selenium;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Package-private bounded queue that runs snapshot uploads in the background.
+ *
+ * At most `capacity` uploads can be waiting or running at once. When the queue is
+ * full, `submit` blocks the capturing thread until an upload finishes, so a slow
+ * CLI applies back-pressure instead of piling up DOM strings on the heap. Threads
+ * that must not block on the queue, like its own upload workers, use
+ * `submitWithoutWaiting` instead.
+ */
+class SnapshotQueue {
+    // How long an idle upload thread we own waits for work before exiting, so a
+    // queue that is never closed doesn't keep its threads
+    private static final Duration KEEP_ALIVE = Duration.ofSeconds(5);
+
+    // Executor running the uploads
+    private final ExecutorService executor;
+
+    // Whether we created the executor (and so must shut it down)
+    private final boolean ownsExecutor;
+
+    // Maximum number of queued or running uploads
+    private final int capacity;
+
+    // One permit per free slot. Fair, so a flush is not starved by new submissions.
+    private final Semaphore slots;
+
+    // Uploads running past capacity, from `submitWithoutWaiting`. Guarded by this.
+    private int overflowing;
+
+    /**
+     * @param executor Executor to run uploads on. It is not shut down by `close`.
+     * @param capacity Maximum number of queued or running uploads.
+     */
+    SnapshotQueue(ExecutorService executor, int capacity) {
+        this(executor, false, capacity);
+    }
+
+    /**
+     * @param threads  Number of daemon threads, owned by this queue, to run uploads on.
+     * @param capacity Maximum number of queued or running uploads.
+     */
+    SnapshotQueue(int threads, int capacity) {
+        this(threads, capacity, KEEP_ALIVE);
+    }
+
+    /**
+     * @param threads   Number of daemon threads, owned by this queue, to run uploads on.
+     * @param capacity  Maximum number of queued or running uploads.
+     * @param keepAlive How long an idle thread waits for another upload before exiting.
+     */
+    SnapshotQueue(int threads, int capacity, Duration keepAlive) {
+        this(uploadThreads(threads, keepAlive), true, capacity);
+    }
+
+    private static ExecutorService uploadThreads(int threads, Duration keepAlive) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, keepAlive.toNanos(),
+            TimeUnit.NANOSECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "percy-upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private SnapshotQueue(ExecutorService executor, boolean ownsExecutor, int capacity) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.capacity = capacity;
+        this.slots = new Semaphore(capacity, true);
+    }
+
+    /**
+     * Queue an upload, blocking while the queue is full. If the executor no longer
+     * accepts work, the upload runs on the calling thread instead of being lost.
+     */
+    void submit(Runnable upload) throws InterruptedException {
+        slots.acquire();
+        execute(upload, slots::release);
+    }
+
+    /**
+     * Queue an upload without waiting for a free slot. When the queue is full the
+     * upload is run anyway, over capacity, and `flush` still waits for it.
+     */
+    void submitWithoutWaiting(Runnable upload) {
+        // Unlike `acquire`, this takes a free permit even while a flush is waiting
+        if (slots.tryAcquire()) {
+            execute(upload, slots::release);
+            return;
+        }
+
+        synchronized (this) {
+            overflowing++;
+        }
+        execute(upload, this::finishOverflow);
+    }
+
+    private void execute(Runnable upload, Runnable done) {
+        try {
+            executor.execute(() -> {
+                try {
+                    upload.run();
+                } finally {
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            try {
+                upload.run();
+            } finally {
+                done.run();
+            }
+        }
+    }
+
+    private synchronized void finishOverflow() {
+        overflowing--;
+        notifyAll();
+    }
+
+    /**
+     * Wait for every upload submitted so far to finish.
+     *
+     * @return true if the queue drained before the timeout elapsed.
+     */
+    boolean flush(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        if (!slots.tryAcquire(capacity, timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+
+        try {
+            synchronized (this) {
+                while (overflowing > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) { return false; }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+
+            return true;
+        } finally {
+            slots.release(capacity);
+        }
+    }
+
+    /**
+     * Flush the queue and shut down the executor if we own it. A user-supplied
+     * executor is left running; its lifecycle belongs to the caller.
+     *
+     * @return true if the queue drained before the timeout elapsed.
+     */
+    boolean close(Duration timeout) throws InterruptedException {
+        boolean drained = flush(timeout);
+        if (ownsExecutor) { executor.shutdown(); }
+
+        return drained;
+    }
+}
@@ -0,0 +1,60 @@
+package io.percy.selenium;
+
+import javax.annotation.Nullable;
+
+/**
+ * The outcome of a snapshot taken with `Percy.snapshotAsync`.
+ */
+public final class SnapshotResult {
+    public enum Status {
+        // The CLI accepted the snapshot
+        UPLOADED,
+        // The CLI answered, but not with a 2xx status
+        REJECTED,
+        // The CLI couldn't be reached; the snapshot was written to the offline spool
+        SPOOLED,
+        // The CLI couldn't be reached, and the snapshot was still held in memory when
+        // the Percy instance was closed
+        HELD,
+        // The snapshot was captured but never sent, e.g. because too many were held
+        DROPPED,
+        // Percy is disabled, so nothing was captured
+        SKIPPED
+    }
+
+    private final Status status;
+    private final int statusCode;
+    @Nullable private final String responseBody;
+    private final SnapshotMetrics metrics;
+
+    SnapshotResult(Status status, int statusCode, @Nullable String responseBody, SnapshotMetrics metrics) {
+        this.status = status;
+        this.statusCode = statusCode;
+        this.responseBody = responseBody;
+        this.metrics = metrics;
+    }
+
+    /** @return The snapshot name. */
+    public String getName() { return metrics.getName(); }
+
+    /** @return What became of the snapshot. */
+    public Status getStatus() { return status; }
+
+    /** @return true if the CLI accepted the snapshot. */
+    public boolean isUploaded() { return status == Status.UPLOADED; }
+
+    /** @return The HTTP status of the CLI's response, or 0 if it never answered. */
+    public int getStatusCode() { return statusCode; }
+
+    /** @return The body of the CLI's response, or null if it never answered. */
+    @Nullable
+    public String getResponseBody() { return responseBody; }
+
+    /** @return Timings and sizes for the snapshot. */
+    public SnapshotMetrics getMetrics() { return metrics; }
+
+    @Override
+    public String toString() {
+        return status + (statusCode != 0 ? " (" + statusCode + ")" : "") + " " + metrics;
+    }
+}
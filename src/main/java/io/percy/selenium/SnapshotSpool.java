@@ -0,0 +1,231 @@
+package io.percy.selenium;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Package-private append-only spool of snapshot request bodies that could not be
+ * sent to the CLI, so they can be uploaded later instead of being lost.
+ *
+ * Each process appends to its own segment file, holding a lock on it while open.
+ * A segment is a sequence of records: an 8-byte length followed by that many bytes
+ * of JSON request body. A length of 0 marks a record whose write never finished;
+ * a negative length marks a record that was already replayed, or that the CLI
+ * rejected and should not be sent again.
+ */
+class SnapshotSpool {
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    // Start a new segment once the current one grows past this many bytes
+    private static final long SEGMENT_BYTES = Long.parseLong(System.getenv().getOrDefault("PERCY_SPOOL_SEGMENT_BYTES", "268435456"));
+
+    // One spool per directory, shared by every Percy instance in the JVM
+    private static final Map<Path, SnapshotSpool> SPOOLS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private FileChannel segment;
+    private FileLock segmentLock;
+
+    private SnapshotSpool(Path directory) {
+        this.directory = directory;
+    }
+
+    static SnapshotSpool forDirectory(Path directory) {
+        return SPOOLS.computeIfAbsent(directory.toAbsolutePath(), SnapshotSpool::new);
+    }
+
+    /**
+     * Append a snapshot's request body to the current segment.
+     */
+    synchronized void append(SnapshotPayload payload) throws IOException {
+        FileChannel channel = currentSegment();
+        long start = channel.size();
+        channel.position(start);
+
+        // Reserve the length; it stays 0 until the body is fully written
+        writeLength(channel, start, 0);
+        channel.position(start + Long.BYTES);
+
+        try {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+            payload.writeTo(out);
+            out.flush();
+        } catch (IOException | RuntimeException ex) {
+            // Drop the partial record, so the next one is appended where it started
+            channel.truncate(start);
+            throw ex;
+        }
+
+        writeLength(channel, start, channel.position() - start - Long.BYTES);
+    }
+
+    private FileChannel currentSegment() throws IOException {
+        if (segment != null && segment.size() < SEGMENT_BYTES) { return segment; }
+
+        if (segment != null) {
+            segmentLock.release();
+            segment.close();
+        }
+
+        Files.createDirectories(directory);
+        // RuntimeMXBean's name is `pid@host`, which keeps concurrent forks apart
+        String process = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9.-]", "_");
+        Path file = directory.resolve("snapshots-" + System.currentTimeMillis() + "-" + process + SEGMENT_SUFFIX);
+
+        segment = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentLock = segment.lock();
+
+        return segment;
+    }
+
+    /**
+     * Release the current segment, so it can be replayed. The next append starts
+     * a new one.
+     */
+    synchronized void close() throws IOException {
+        if (segment == null) { return; }
+
+        segmentLock.release();
+        segment.close();
+        segment = null;
+    }
+
+    /**
+     * POST every spooled snapshot in `directory` to the CLI, oldest segment first.
+     * This JVM's own segment is closed first, so what it spooled is replayed too;
+     * segments still locked by another running process are skipped. Replayed records are
+     * marked as such, and fully replayed segments are deleted. Records the CLI
+     * rejects outright (a 4xx) are marked as replayed without counting; replay stops
+     * at the first record it fails to take for now (a 5xx), so it can be retried
+     * later.
+     *
+     * @return The number of snapshots uploaded.
+     */
+    static int replay(Path directory, String serverAddress) throws IOException {
+        if (!Files.isDirectory(directory)) { return 0; }
+
+        SnapshotSpool own = SPOOLS.get(directory.toAbsolutePath());
+        if (own != null) { own.close(); }
+
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            files.forEach(segments::add);
+        }
+        // Names start with the creation time, so this is oldest first
+        Collections.sort(segments);
+
+        int uploaded = 0;
+        for (Path file : segments) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException ex) {
+                    // This JVM started appending to a new segment since
+                    continue;
+                }
+                if (lock == null) { continue; }
+
+                boolean isAccepted = true;
+                long position = 0;
+                long size = channel.size();
+                while (position + Long.BYTES <= size) {
+                    long length = readLength(channel, position);
+                    if (length == 0 || position + Long.BYTES + Math.abs(length) > size) {
+                        // The write of this record never finished; nothing after it is usable
+                        break;
+                    }
+
+                    long body = position + Long.BYTES;
+                    if (length > 0) {
+                        int status = post(serverAddress, channel.map(FileChannel.MapMode.READ_ONLY, body, length));
+                        if (RetryPolicy.isRetryable(status)) {
+                            isAccepted = false;
+                            break;
+                        }
+
+                        writeLength(channel, position, -length);
+                        if (status >= 200 && status < 300) { uploaded++; }
+                    }
+
+                    position = body + Math.abs(length);
+                }
+
+                lock.release();
+                if (!isAccepted) { return uploaded; }
+                // Keep a segment with a torn record, rather than lose what can't be read
+                if (position != size) { continue; }
+            }
+
+            Files.delete(file);
+        }
+
+        return uploaded;
+    }
+
+    private static int post(String serverAddress, MappedByteBuffer body) throws IOException {
+        return Transports.forAddress(serverAddress).postSnapshot(serverAddress, new MappedBody(body)).getStatusCode();
+    }
+
+    private static void writeLength(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static long readLength(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) { return 0; }
+        }
+
+        return buffer.getLong(0);
+    }
+
+    /**
+     * Request body backed by a memory-mapped spool record.
+     */
+    private static class MappedBody implements RequestBody {
+        // Held as a ByteBuffer, so `duplicate` links against ByteBuffer's; the
+        // covariant MappedByteBuffer.duplicate only exists from Java 13
+        private final ByteBuffer body;
+
+        MappedBody(MappedByteBuffer body) {
+            this.body = body;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer source = body.duplicate();
+            byte[] chunk = new byte[65536];
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+        @Override
+        public long contentLength() {
+            return body.capacity();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Package-private network side of posting a snapshot to the CLI, through the
+ * address's `PercyTransport`.
+ *
+ * It lives apart from `Percy` so that a disabled Percy never loads a transport.
+ */
+class SnapshotUploader {
+    // Gzip-encode snapshot request bodies
+    private static final boolean GZIP_REQUESTS = System.getenv().getOrDefault("PERCY_GZIP_REQUESTS", "false").equals("true");
+
+    // Request bodies smaller than this many bytes are sent uncompressed
+    private static final long GZIP_MIN_BYTES = Long.parseLong(System.getenv().getOrDefault("PERCY_GZIP_MIN_BYTES", "32768"));
+
+    private SnapshotUploader() {}
+
+    /**
+     * POST a snapshot, streaming the body as it is encoded. Records the encoding
+     * time and request size in `metrics`.
+     *
+     * @return The CLI's response.
+     * @throws IOException If the CLI could not be reached.
+     */
+    static TransportResponse post(String serverAddress, SnapshotPayload payload, SnapshotMetrics metrics) throws IOException {
+        RequestBody body = payload;
+        if (GZIP_REQUESTS && payload.estimatedSize() >= GZIP_MIN_BYTES) {
+            body = new GzipBody(body);
+        }
+
+        return Transports.forAddress(serverAddress).postSnapshot(serverAddress, new MeasuredBody(body, metrics));
+    }
+
+    /**
+     * POST several snapshots in one request, streaming each as it is encoded.
+     * Records each snapshot's encoding time and size (before any compression of
+     * the whole batch) in its metrics.
+     *
+     * @return The CLI's response to the whole batch.
+     * @throws IOException If the CLI could not be reached.
+     */
+    static TransportResponse postBatch(String serverAddress, List<SnapshotPayload> payloads, List<SnapshotMetrics> metrics,
+            BatchBody.Format format) throws IOException {
+        List<RequestBody> snapshots = new ArrayList<>(payloads.size());
+        long estimatedSize = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            snapshots.add(new MeasuredBody(payloads.get(i), metrics.get(i)));
+            estimatedSize += payloads.get(i).estimatedSize();
+        }
+
+        RequestBody body = new BatchBody(snapshots, format);
+        if (GZIP_REQUESTS && estimatedSize >= GZIP_MIN_BYTES) {
+            body = new GzipBody(body);
+        }
+
+        return Transports.forAddress(serverAddress).postBatch(serverAddress, body);
+    }
+}
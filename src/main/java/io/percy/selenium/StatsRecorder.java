@@ -0,0 +1,63 @@
+package io.percy.selenium;
+
+import java.util.Arrays;
+
+/**
+ * Package-private accumulator behind `Percy.stats()`.
+ *
+ * Totals cover every snapshot; percentiles are taken over a ring buffer of the
+ * most recent snapshot times, so memory stays constant however long the run is.
+ */
+class StatsRecorder {
+    // Number of recent snapshot times kept for percentiles
+    private static final int WINDOW = 1024;
+
+    private final long[] recent = new long[WINDOW];
+    private long snapshots;
+    private long failures;
+    private long injectNanos;
+    private long serializeNanos;
+    private long transferNanos;
+    private long encodeNanos;
+    private long postNanos;
+    private long domChars;
+    private long requestBytes;
+    private long retries;
+    private long circuitTrips;
+
+    synchronized void record(SnapshotMetrics metrics) {
+        recent[(int) (snapshots % WINDOW)] = metrics.totalNanos();
+        snapshots++;
+        if (!metrics.uploaded) { failures++; }
+        injectNanos += metrics.injectNanos;
+        serializeNanos += metrics.serializeNanos;
+        transferNanos += metrics.transferNanos;
+        encodeNanos += metrics.encodeNanos;
+        postNanos += metrics.postNanos;
+        domChars += metrics.domChars;
+        requestBytes += metrics.requestBytes;
+        retries += metrics.retries;
+    }
+
+    // Counted when it happens; the snapshot involved may not be published until later
+    synchronized void recordCircuitTrip() {
+        circuitTrips++;
+    }
+
+    synchronized PercyStats snapshot() {
+        long[] sorted = Arrays.copyOf(recent, (int) Math.min(snapshots, WINDOW));
+        Arrays.sort(sorted);
+
+        return new PercyStats(snapshots, failures, injectNanos, serializeNanos, transferNanos, encodeNanos,
+            postNanos, domChars, requestBytes, retries, circuitTrips, percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+            MemoryBudget.GLOBAL.used(), MemoryBudget.GLOBAL.peak());
+    }
+
+    // Nearest-rank percentile
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) { return 0; }
+
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,51 @@
+package io.percy.selenium;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A response from the Percy CLI, as returned by a `PercyTransport`. The body is
+ * read in full before the response is returned.
+ */
+public final class TransportResponse {
+    private final int statusCode;
+    private final Map<String, String> headers;
+    @Nullable private final String body;
+
+    /**
+     * @param statusCode The HTTP status code.
+     * @param headers    Response headers. Only one value is kept per name.
+     * @param body       The response body, or null if there was none.
+     */
+    public TransportResponse(int statusCode, Map<String, String> headers, @Nullable String body) {
+        Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(headers);
+
+        this.statusCode = statusCode;
+        this.headers = Collections.unmodifiableMap(copy);
+        this.body = body;
+    }
+
+    /** @return The HTTP status code. */
+    public int getStatusCode() { return statusCode; }
+
+    /** @return true for a 2xx status code. */
+    public boolean isSuccessful() { return statusCode >= 200 && statusCode < 300; }
+
+    /**
+     * @param name A header name, in any case.
+     * @return The header's value, or null if it wasn't sent.
+     */
+    @Nullable
+    public String getHeader(String name) { return headers.get(name); }
+
+    /** @return Every response header, with case-insensitive names. */
+    public Map<String, String> getHeaders() { return headers; }
+
+    /** @return The response body, or null if there was none. */
+    @Nullable
+    public String getBody() { return body; }
+}
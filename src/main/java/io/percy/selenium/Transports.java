@@ -0,0 +1,105 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+/**
+ * Package-private lookup of the `PercyTransport` to use for a CLI address.
+ *
+ * Transports are loaded once per JVM with `ServiceLoader`. A provider that can't be
+ * loaded, e.g. because its dependencies are missing from the classpath, is skipped
+ * instead of failing the lookup.
+ */
+class Transports {
+    // Name of the transport to use when several support an address
+    @Nullable
+    private static final String PREFERRED = System.getenv("PERCY_TRANSPORT");
+
+    // Transports already chosen, by CLI address
+    private static final Map<String, PercyTransport> BY_ADDRESS = new ConcurrentHashMap<>();
+
+    private Transports() {}
+
+    /**
+     * @throws IOException If no transport supports the address, as if the CLI
+     *                     couldn't be reached.
+     */
+    static PercyTransport forAddress(String serverAddress) throws IOException {
+        PercyTransport transport = BY_ADDRESS.get(serverAddress);
+        if (transport != null) { return transport; }
+
+        PercyTransport first = null;
+        for (PercyTransport candidate : Holder.TRANSPORTS) {
+            if (!candidate.supports(serverAddress)) { continue; }
+            if (first == null) { first = candidate; }
+            if (candidate.name().equals(PREFERRED)) {
+                first = candidate;
+                break;
+            }
+        }
+        if (first == null) { throw new IOException("No Percy transport supports " + serverAddress); }
+
+        BY_ADDRESS.putIfAbsent(serverAddress, first);
+        return BY_ADDRESS.get(serverAddress);
+    }
+
+    /**
+     * @return The loaded transport called `name`, or null if there is none.
+     */
+    @Nullable
+    static PercyTransport named(String name) {
+        for (PercyTransport transport : Holder.TRANSPORTS) {
+            if (transport.name().equals(name)) { return transport; }
+        }
+
+        return null;
+    }
+
+    private static List<PercyTransport> load() {
+        List<PercyTransport> transports = new ArrayList<>();
+        Iterator<PercyTransport> providers = ServiceLoader.load(PercyTransport.class, Transports.class.getClassLoader()).iterator();
+
+        // Each failure moves the iterator past the broken provider; the limit only
+        // guards against a loader that keeps failing in the same place
+        for (int failures = 0; failures < 16; ) {
+            try {
+                if (!providers.hasNext()) { break; }
+                transports.add(providers.next());
+            } catch (ServiceConfigurationError | LinkageError ex) {
+                PercyLog.debug("Skipping Percy transport: " + ex);
+                failures++;
+            }
+        }
+
+        // The service file is lost when the SDK is repackaged without it
+        if (transports.isEmpty()) {
+            addBuiltIn(transports, MemoryTransport::new);
+            addBuiltIn(transports, ApacheHttpTransport::new);
+            addBuiltIn(transports, JdkHttpTransport::new);
+        }
+
+        return Collections.unmodifiableList(transports);
+    }
+
+    private static void addBuiltIn(List<PercyTransport> transports, Supplier<PercyTransport> transport) {
+        try {
+            transports.add(transport.get());
+        } catch (LinkageError ex) {
+            PercyLog.debug("Skipping Percy transport: " + ex);
+        }
+    }
+
+    private static class Holder {
+        static final List<PercyTransport> TRANSPORTS = load();
+    }
+}
@@ -0,0 +1,289 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+import javax.annotation.Nullable;
+
+/**
+ * Transport for `http://` and `https://` CLI addresses built on the Java 11
+ * `java.net.http.HttpClient`, for setups without Apache HttpClient. Select it with
+ * `PERCY_TRANSPORT=jdk11`; it is also picked over `jdk` when Apache HttpClient
+ * isn't on the classpath.
+ *
+ * One client is shared by the JVM. It speaks HTTP/2 when the CLI does (falling
+ * back to HTTP/1.1 otherwise), so concurrent uploads share a connection, and its
+ * I/O is non-blocking: the thread posting a snapshot only encodes the body, handing
+ * each chunk to the client as it asks for more, and then waits for the response.
+ *
+ * Compiled separately with `--release 11` (see the `java11` profile); on Java 8
+ * the class fails to load and `ServiceLoader` skips it.
+ */
+public final class HttpClientTransport implements PercyTransport {
+    // Connect timeout in milliseconds
+    private static final int CONNECT_TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_CONNECT_TIMEOUT", "5000"));
+
+    // Read timeout in milliseconds; 0 waits indefinitely
+    private static final int READ_TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_READ_TIMEOUT", "0"));
+
+    // Size of the chunks request bodies are handed to the client in
+    private static final int CHUNK_SIZE = 65536;
+
+    @Override
+    public String name() {
+        return "jdk11";
+    }
+
+    @Override
+    public boolean supports(String serverAddress) {
+        return serverAddress.startsWith("http://") || serverAddress.startsWith("https://");
+    }
+
+    @Override
+    public TransportResponse healthcheck(String serverAddress, int timeoutMillis) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(serverAddress + "/percy/healthcheck"))
+            .timeout(Duration.ofMillis(timeoutMillis))
+            .GET()
+            .build();
+
+        return toResponse(await(Holder.CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))));
+    }
+
+    @Override
+    public TransportResponse fetchDomScript(String serverAddress, @Nullable String etag) throws IOException {
+        HttpRequest.Builder request = newRequest(serverAddress + "/percy/dom.js").GET();
+        if (etag != null) { request.header("If-None-Match", etag); }
+
+        return toResponse(await(Holder.CLIENT.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))));
+    }
+
+    @Override
+    public TransportResponse postSnapshot(String serverAddress, RequestBody body) throws IOException {
+        BodyStream stream = new BodyStream();
+        long length = body.contentLength();
+
+        HttpRequest.Builder request = newRequest(serverAddress + "/percy/snapshot")
+            .header("Content-Type", body.contentType())
+            .POST(length > 0
+                ? HttpRequest.BodyPublishers.fromPublisher(stream, length)
+                : HttpRequest.BodyPublishers.fromPublisher(stream));
+        if (body.contentEncoding() != null) { request.header("Content-Encoding", body.contentEncoding()); }
+
+        CompletableFuture<HttpResponse<String>> response =
+            Holder.CLIENT.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        // Wake the encoding thread if the exchange ends before the client has taken the whole body
+        response.whenComplete((result, error) -> stream.abandon());
+
+        try {
+            body.writeTo(stream);
+            stream.close();
+        } catch (IOException ex) {
+            // If the client stopped taking the body, the CLI answered early or the
+            // connection failed, and the response says which
+            if (ex instanceof InterruptedIOException || !stream.isAbandoned()) {
+                stream.fail(ex);
+                response.cancel(true);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            // Don't leave the exchange waiting for the rest of the body
+            stream.fail(ex);
+            response.cancel(true);
+            throw ex;
+        }
+
+        return toResponse(await(response));
+    }
+
+    @Override
+    public TransportResponse postBatch(String serverAddress, RequestBody body) throws IOException {
+        return postSnapshot(serverAddress, body);
+    }
+
+    private static HttpRequest.Builder newRequest(String url) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url));
+        if (READ_TIMEOUT > 0) { request.timeout(Duration.ofMillis(READ_TIMEOUT)); }
+
+        return request;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the Percy CLI");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) { throw (IOException) ex.getCause(); }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static TransportResponse toResponse(HttpResponse<String> response) {
+        Map<String, String> headers = new HashMap<>();
+        response.headers().map().forEach((name, values) -> {
+            if (!values.isEmpty()) { headers.put(name, values.get(0)); }
+        });
+
+        return new TransportResponse(response.statusCode(), headers, response.body());
+    }
+
+    /**
+     * Bridges `RequestBody.writeTo`, which pushes bytes, to the client's body
+     * subscriber, which pulls them: each write blocks until the client has asked for
+     * another chunk, so at most one chunk is buffered and the encoder can't outrun
+     * the connection. Only sent once; the client never has to replay it, since the
+     * CLI doesn't redirect or ask for authentication.
+     */
+    private static final class BodyStream extends OutputStream implements Flow.Publisher<ByteBuffer> {
+        private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+        // Guarded by this
+        private boolean claimed;
+        @Nullable private Flow.Subscriber<? super ByteBuffer> subscriber;
+        private long demand;
+        // Set once the body is complete, failed, or no longer wanted
+        private boolean done;
+        // Set once the client no longer wants the body
+        private boolean abandoned;
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            boolean rejected;
+            synchronized (this) {
+                rejected = claimed || done;
+                claimed = true;
+            }
+
+            if (rejected) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override public void request(long n) {}
+                    @Override public void cancel() {}
+                });
+                subscriber.onError(new IOException("A snapshot request body can only be sent once"));
+                return;
+            }
+
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    synchronized (BodyStream.this) {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                        BodyStream.this.notifyAll();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    abandon();
+                }
+            });
+
+            // Only signalled once onSubscribe has returned
+            synchronized (this) {
+                this.subscriber = subscriber;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!chunk.hasRemaining()) { emit(); }
+            chunk.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!chunk.hasRemaining()) { emit(); }
+
+                int count = Math.min(len, chunk.remaining());
+                chunk.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (chunk.position() > 0) { emit(); }
+
+            Flow.Subscriber<? super ByteBuffer> target = awaitSubscriber(false);
+            synchronized (this) { done = true; }
+            target.onComplete();
+        }
+
+        /**
+         * Fail the request with `error`, unless it already ended.
+         */
+        void fail(Throwable error) {
+            Flow.Subscriber<? super ByteBuffer> target;
+            synchronized (this) {
+                if (done) { return; }
+                done = true;
+                target = subscriber;
+                notifyAll();
+            }
+
+            if (target != null) { target.onError(error); }
+        }
+
+        /**
+         * Stop waiting for the client to take more of the body.
+         */
+        synchronized void abandon() {
+            done = true;
+            abandoned = true;
+            notifyAll();
+        }
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        private void emit() throws IOException {
+            Flow.Subscriber<? super ByteBuffer> target = awaitSubscriber(true);
+
+            chunk.flip();
+            target.onNext(chunk);
+            // The client may still hold on to the last chunk, so never reuse it
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+
+        private synchronized Flow.Subscriber<? super ByteBuffer> awaitSubscriber(boolean needsDemand) throws IOException {
+            try {
+                while (!done && (subscriber == null || (needsDemand && demand == 0))) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending a snapshot to the Percy CLI");
+            }
+            if (done) { throw new IOException("The Percy CLI stopped reading the snapshot"); }
+
+            if (needsDemand) { demand--; }
+            return subscriber;
+        }
+    }
+
+    private static class Holder {
+        static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+            .build();
+    }
+}
@@ -0,0 +1,271 @@
+package io.percy.selenium;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Transport for a CLI listening on a Unix domain socket, addressed as
+ * `unix:///path/to/percy.sock`. Skips the TCP stack and port allocation, which
+ * matters for multi-megabyte snapshots in containerized runners.
+ *
+ * Speaks just enough HTTP/1.1 for the CLI's three endpoints, over a blocking
+ * `SocketChannel`: one connection per request (connecting to a socket file is
+ * cheap), bodies of unknown length sent chunked.
+ *
+ * Compiled separately with `--release 16` (see the `java16` profile); on older
+ * runtimes the class fails to load and `ServiceLoader` skips it.
+ */
+public final class UnixSocketTransport implements PercyTransport {
+    private static final String SCHEME = "unix://";
+
+    // Read timeout in milliseconds; 0 waits indefinitely
+    private static final int READ_TIMEOUT = Integer.parseInt(System.getenv().getOrDefault("PERCY_CLIENT_READ_TIMEOUT", "0"));
+
+    // Size of the write buffer, and so of the chunks of a chunked body
+    private static final int CHUNK_SIZE = 65536;
+
+    @Override
+    public String name() {
+        return "unix";
+    }
+
+    @Override
+    public boolean supports(String serverAddress) {
+        return serverAddress.startsWith(SCHEME);
+    }
+
+    @Override
+    public TransportResponse healthcheck(String serverAddress, int timeoutMillis) throws IOException {
+        return send(serverAddress, "GET", "/percy/healthcheck", new HashMap<>(), null, timeoutMillis);
+    }
+
+    @Override
+    public TransportResponse fetchDomScript(String serverAddress, @Nullable String etag) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (etag != null) { headers.put("If-None-Match", etag); }
+
+        return send(serverAddress, "GET", "/percy/dom.js", headers, null, READ_TIMEOUT);
+    }
+
+    @Override
+    public TransportResponse postSnapshot(String serverAddress, RequestBody body) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", body.contentType());
+        if (body.contentEncoding() != null) { headers.put("Content-Encoding", body.contentEncoding()); }
+
+        return send(serverAddress, "POST", "/percy/snapshot", headers, body, READ_TIMEOUT);
+    }
+
+    @Override
+    public TransportResponse postBatch(String serverAddress, RequestBody body) throws IOException {
+        return postSnapshot(serverAddress, body);
+    }
+
+    private static TransportResponse send(String serverAddress, String method, String path,
+            Map<String, String> headers, @Nullable RequestBody body, int timeoutMillis) throws IOException {
+        UnixDomainSocketAddress socket = UnixDomainSocketAddress.of(serverAddress.substring(SCHEME.length()));
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            // Blocking channels have no read timeout; closing the channel ends a stuck read
+            ScheduledFuture<?> timeout = timeoutMillis > 0
+                ? Holder.TIMEOUTS.schedule(() -> closeQuietly(channel), timeoutMillis, TimeUnit.MILLISECONDS)
+                : null;
+
+            try {
+                channel.connect(socket);
+                writeRequest(channel, method, path, headers, body);
+
+                return readResponse(new BufferedInputStream(Channels.newInputStream(channel), 8192), method);
+            } finally {
+                if (timeout != null) { timeout.cancel(false); }
+            }
+        }
+    }
+
+    private static void writeRequest(SocketChannel channel, String method, String path,
+            Map<String, String> headers, @Nullable RequestBody body) throws IOException {
+        long length = body != null ? body.contentLength() : 0;
+
+        StringBuilder head = new StringBuilder()
+            .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+            .append("Host: localhost\r\n")
+            .append("Connection: close\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body != null) {
+            head.append(length >= 0 ? "Content-Length: " + length : "Transfer-Encoding: chunked").append("\r\n");
+        }
+        head.append("\r\n");
+
+        // Not closed: closing the stream would close the channel before the response is read
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), CHUNK_SIZE);
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (body != null && length >= 0) {
+            body.writeTo(out);
+        } else if (body != null) {
+            ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+            body.writeTo(chunked);
+            chunked.finish();
+        }
+        out.flush();
+    }
+
+    private static TransportResponse readResponse(InputStream in, String method) throws IOException {
+        String statusLine = readLine(in);
+        // "HTTP/1.1 200 OK"
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new ProtocolException("Unexpected response from the Percy CLI: " + statusLine);
+        }
+        int statusCode = Integer.parseInt(status[1]);
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            if (colon > 0) { headers.putIfAbsent(line.substring(0, colon).trim(), line.substring(colon + 1).trim()); }
+        }
+        TransportResponse head = new TransportResponse(statusCode, headers, null);
+
+        if (method.equals("HEAD") || statusCode == 204 || statusCode == 304 || statusCode / 100 == 1) {
+            return head;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String transferEncoding = head.getHeader("Transfer-Encoding");
+        String contentLength = head.getHeader("Content-Length");
+        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            for (long size = chunkSize(readLine(in)); size > 0; size = chunkSize(readLine(in))) {
+                copy(in, body, size);
+                readLine(in);
+            }
+            // Trailers, up to the closing blank line
+            while (!readLine(in).isEmpty()) {}
+        } else if (contentLength != null) {
+            copy(in, body, Long.parseLong(contentLength));
+        } else {
+            // We asked for the connection to be closed, which ends the body
+            in.transferTo(body);
+        }
+
+        return new TransportResponse(statusCode, headers, new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) { throw new EOFException("The Percy CLI closed the connection"); }
+            if (c != '\r') { line.append((char) c); }
+        }
+
+        return line.toString();
+    }
+
+    private static long chunkSize(String line) throws ProtocolException {
+        int extension = line.indexOf(';');
+        try {
+            return Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+        } catch (NumberFormatException ex) {
+            throw new ProtocolException("Bad chunk size from the Percy CLI: " + line);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) { throw new EOFException("The Percy CLI closed the connection"); }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Writes a body in HTTP/1.1 chunks of up to `CHUNK_SIZE` bytes.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) { writeChunk(); }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) { writeChunk(); }
+
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Chunks are only written when full, so they stay large
+        }
+
+        /**
+         * Write what is buffered and the last, empty chunk. Does not close the stream
+         * underneath.
+         */
+        void finish() throws IOException {
+            if (count > 0) { writeChunk(); }
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private void writeChunk() throws IOException {
+            out.write((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(buffer, 0, count);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            count = 0;
+        }
+    }
+
+    private static class Holder {
+        static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "percy-unix-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
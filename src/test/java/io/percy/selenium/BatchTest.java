@@ -0,0 +1,85 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests for collecting snapshots into batches and encoding them.
+ */
+public class BatchTest {
+  private final List<List<String>> sent = new CopyOnWriteArrayList<>();
+  // Whether each sent batch could wait for room in an upload queue
+  private final List<Boolean> couldWait = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void sendsFullBatches() {
+    SnapshotBatcher<String> batcher = new SnapshotBatcher<>(3, Long.MAX_VALUE, 60000, String::length, this::send);
+
+    for (String name : Arrays.asList("a", "b", "c", "d")) { batcher.add(name); }
+    assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), sent);
+
+    batcher.flush();
+    assertEquals(Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("d")), sent);
+  }
+
+  @Test
+  public void sendsBatchesThatReachTheByteLimit() {
+    SnapshotBatcher<String> batcher = new SnapshotBatcher<>(100, 10, 60000, String::length, this::send);
+
+    batcher.add("123456");
+    batcher.add("7890");
+    batcher.add("x");
+
+    assertEquals(Arrays.asList(Arrays.asList("123456", "7890")), sent);
+  }
+
+  @Test
+  public void sendsOpenBatchesAfterTheDelay() throws Exception {
+    SnapshotBatcher<String> batcher = new SnapshotBatcher<>(100, Long.MAX_VALUE, 50, String::length, this::send);
+
+    batcher.add("late");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sent.isEmpty() && System.currentTimeMillis() < deadline) { Thread.sleep(10); }
+
+    assertEquals(Arrays.asList(Arrays.asList("late")), sent);
+    // The timer thread is shared, so it must not wait on a full queue
+    assertEquals(Arrays.asList(false), couldWait);
+  }
+
+  @Test
+  public void writesJsonArraysAndNewlineDelimitedStreams() throws Exception {
+    List<RequestBody> snapshots = Arrays.asList(out -> out.write("{\"name\":\"a\"}".getBytes("UTF-8")),
+      out -> out.write("{\"name\":\"b\"}".getBytes("UTF-8")));
+
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    new BatchBody(snapshots, BatchBody.Format.JSON).writeTo(json);
+    assertEquals("[{\"name\":\"a\"},{\"name\":\"b\"}]", json.toString("UTF-8"));
+
+    ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+    BatchBody body = new BatchBody(snapshots, BatchBody.Format.NDJSON);
+    body.writeTo(ndjson);
+    assertEquals("{\"name\":\"a\"}\n{\"name\":\"b\"}\n", ndjson.toString("UTF-8"));
+    assertEquals("application/x-ndjson", body.contentType());
+  }
+
+  private void send(List<String> batch, boolean canWait) {
+    sent.add(batch);
+    couldWait.add(canWait);
+  }
+
+  @Test
+  public void onlyBatchesWhenTheCliAdvertisesIt() {
+    assertNull(BatchBody.Format.choose(null, BatchBody.Format.JSON));
+    assertNull(BatchBody.Format.choose("msgpack", BatchBody.Format.JSON));
+    assertEquals(BatchBody.Format.NDJSON, BatchBody.Format.choose("ndjson", BatchBody.Format.JSON));
+    assertEquals(BatchBody.Format.NDJSON, BatchBody.Format.choose("json, NDJSON", BatchBody.Format.NDJSON));
+    assertEquals(BatchBody.Format.JSON, BatchBody.Format.choose("ndjson,json", BatchBody.Format.JSON));
+  }
+}
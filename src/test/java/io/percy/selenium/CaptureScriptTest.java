@@ -0,0 +1,159 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for how the capture script reaches the browser: pinned on Chromium drivers,
+ * and with dom.js read from session storage on the rest when asked for. Uses stub
+ * drivers and a stand-in for the Percy CLI.
+ */
+public class CaptureScriptTest {
+  private StubCli cli;
+  private String address;
+
+  @BeforeEach
+  public void startCli(@TempDir Path cacheDir) throws IOException {
+    // Where dom.js is cached, instead of the user's cache directory
+    DomScriptCache.useDirectory(cacheDir);
+    cli = new StubCli().start();
+    address = cli.address();
+  }
+
+  @AfterEach
+  public void stopCli() {
+    cli.stop();
+    DomScriptCache.useDirectory(null);
+    System.clearProperty("percy.domStorage");
+  }
+
+  @Test
+  public void sendsDomJsWithEverySnapshotByDefault() {
+    StubDriver driver = new StubDriver();
+    Percy percy = new Percy(driver, address, null);
+
+    percy.snapshot("first");
+    percy.snapshot("second");
+
+    assertEquals(0, driver.fromStorage());
+    assertEquals(2, driver.withDomJs());
+  }
+
+  @Test
+  public void readsDomJsFromStorageAfterTheFirstSnapshot() {
+    System.setProperty("percy.domStorage", "session");
+    StubDriver driver = new StubDriver();
+    Percy percy = new Percy(driver, address, null);
+
+    percy.snapshot("first");
+    percy.snapshot("second");
+
+    // A miss and the whole script the first time, then only the script that reads storage
+    assertEquals(2, driver.fromStorage());
+    assertEquals(1, driver.withDomJs());
+  }
+
+  @Test
+  public void stopsReadingStorageOnOriginsThatBlockEval() {
+    System.setProperty("percy.domStorage", "session");
+    StubDriver driver = new StubDriver();
+    driver.isEvalBlocked = true;
+    Percy percy = new Percy(driver, address, null);
+
+    percy.snapshot("first");
+    percy.snapshot("second");
+    percy.snapshot("third");
+
+    // A miss, then the stored script failing to evaluate, then the whole script only
+    assertEquals(2, driver.fromStorage());
+    assertEquals(3, driver.withDomJs());
+  }
+
+  @Test
+  public void pinsTheCaptureScriptOnChromiumDrivers() {
+    ChromiumStubDriver driver = new ChromiumStubDriver();
+    Percy percy = new Percy(driver, address, null);
+
+    percy.snapshot("first");
+    percy.snapshot("second");
+
+    assertEquals(1, driver.pinned.size());
+    assertEquals(2, driver.pinnedRuns);
+    assertEquals(0, driver.scripts.size());
+  }
+
+  @Test
+  public void sharesPinnedScriptsBetweenInstancesUntilClosed() {
+    ChromiumStubDriver driver = new ChromiumStubDriver();
+    Percy first = new Percy(driver, address, null);
+    Percy second = new Percy(driver, address, null);
+
+    first.snapshot("first");
+    second.snapshot("second");
+    assertEquals(1, driver.pinned.size());
+
+    first.close();
+    assertEquals(0, driver.pinned.size());
+
+    // The other instance pins it again
+    second.snapshot("third");
+    assertEquals(1, driver.pinned.size());
+    assertEquals(3, driver.pinnedRuns);
+    second.close();
+    assertEquals(0, driver.pinned.size());
+  }
+
+  @Test
+  public void leavesPinningToChromiumDrivers() {
+    System.setProperty("percy.domStorage", "session");
+    PinningStubDriver driver = new PinningStubDriver();
+    Percy percy = new Percy(driver, address, null);
+
+    percy.snapshot("first");
+    percy.snapshot("second");
+
+    assertEquals(0, driver.pinned.size());
+    assertEquals(2, driver.fromStorage());
+    assertEquals(1, driver.withDomJs());
+  }
+
+  // Stands in for Selenium 4's ScriptKey
+  public static class Key {}
+
+  // Has Selenium 4's pinning methods, like a driver that only remembers pinned scripts
+  public static class PinningStubDriver extends StubDriver {
+    final Map<Key, String> pinned = new HashMap<>();
+    int pinnedRuns;
+
+    public Key pin(String script) {
+      Key key = new Key();
+      pinned.put(key, script);
+      return key;
+    }
+
+    public void unpin(Key key) {
+      pinned.remove(key);
+    }
+
+    public Object executeScript(Key key, Object... args) {
+      pinnedRuns++;
+      return snapshot();
+    }
+  }
+
+  // Also speaks the DevTools protocol, like ChromiumDriver
+  public static class ChromiumStubDriver extends PinningStubDriver {
+    public Map<String, Object> executeCdpCommand(String command, Map<String, Object> params) {
+      throw new UnsupportedOperationException(command);
+    }
+  }
+}
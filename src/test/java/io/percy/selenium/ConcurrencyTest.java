@@ -0,0 +1,210 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress tests for sharing Percy instances between threads, using stub drivers and
+ * a stand-in for the Percy CLI.
+ */
+public class ConcurrencyTest {
+  private static final int DRIVERS = 8;
+  private static final int THREADS_PER_DRIVER = 4;
+  private static final int SNAPSHOTS_PER_THREAD = 25;
+
+  private static StubCli cli;
+  private static ExecutorService serverExecutor;
+  private static String serverAddress;
+
+  // Snapshots received by the stand-in CLI, and how many were in flight at once
+  private static final AtomicInteger received = new AtomicInteger();
+  private static final AtomicInteger inFlight = new AtomicInteger();
+  private static final AtomicInteger maxInFlight = new AtomicInteger();
+
+  // Where dom.js is cached, instead of the user's cache directory
+  @TempDir
+  static Path cacheDir;
+
+  @BeforeAll
+  public static void startServer() throws IOException {
+    DomScriptCache.useDirectory(cacheDir);
+    serverExecutor = Executors.newFixedThreadPool(16);
+    cli = new StubCli()
+      .handle("/percy/snapshot", ConcurrencyTest::handleSnapshot)
+      .executor(serverExecutor)
+      .start();
+    serverAddress = cli.address();
+  }
+
+  @AfterAll
+  public static void stopServer() {
+    cli.stop();
+    serverExecutor.shutdownNow();
+    DomScriptCache.useDirectory(null);
+  }
+
+  @Test
+  public void sharesInstancesBetweenThreadsWithSynchronousUploads() throws Exception {
+    runStress(null);
+  }
+
+  @Test
+  public void sharesInstancesBetweenThreadsWithBackgroundUploads() throws Exception {
+    ExecutorService uploads = Executors.newFixedThreadPool(8);
+    try {
+      runStress(uploads);
+    } finally {
+      uploads.shutdown();
+    }
+  }
+
+  @Test
+  public void uploadWorkersQueueMoreUploadsWithoutWaitingForTheirOwnSlot() throws Exception {
+    SnapshotQueue queue = new SnapshotQueue(1, 1);
+    CountDownLatch flushing = new CountDownLatch(1);
+    AtomicInteger ran = new AtomicInteger();
+
+    // As a worker handing back held snapshots does, while a flush waits for the slot
+    queue.submit(() -> {
+      try {
+        flushing.await();
+        Thread.sleep(100);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      queue.submitWithoutWaiting(ran::incrementAndGet);
+      ran.incrementAndGet();
+    });
+    flushing.countDown();
+
+    assertTrue(queue.close(Duration.ofSeconds(10)));
+    assertEquals(2, ran.get());
+  }
+
+  @Test
+  public void idleUploadThreadsExitWithoutClosingTheQueue() throws Exception {
+    SnapshotQueue queue = new SnapshotQueue(2, 4, Duration.ofMillis(50));
+    List<Thread> workers = new ArrayList<>();
+    CountDownLatch ran = new CountDownLatch(2);
+    for (int n = 0; n < 2; n++) {
+      queue.submit(() -> {
+        synchronized (workers) { workers.add(Thread.currentThread()); }
+        ran.countDown();
+      });
+    }
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+
+    for (Thread worker : workers) {
+      worker.join(10000);
+      assertFalse(worker.isAlive());
+    }
+  }
+
+  @Test
+  public void composesAsyncSnapshots() throws Exception {
+    received.set(0);
+    StubDriver stub = new StubDriver("http://localhost/page-0");
+
+    try (Percy percy = new Percy(stub, serverAddress, null)) {
+      List<CompletableFuture<SnapshotResult>> results = new ArrayList<>();
+      for (int n = 0; n < SNAPSHOTS_PER_THREAD; n++) {
+        results.add(percy.snapshotAsync("async snapshot " + n));
+      }
+      CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+      for (CompletableFuture<SnapshotResult> future : results) {
+        SnapshotResult result = future.get();
+        assertEquals(SnapshotResult.Status.UPLOADED, result.getStatus());
+        assertEquals(200, result.getStatusCode());
+        assertEquals("{\"success\":true}", result.getResponseBody());
+        assertTrue(result.getMetrics().getRequestBytes() > 0);
+      }
+    }
+
+    assertEquals(SNAPSHOTS_PER_THREAD, received.get());
+  }
+
+  private void runStress(ExecutorService uploads) throws Exception {
+    received.set(0);
+    maxInFlight.set(0);
+
+    List<StubDriver> stubs = new ArrayList<>();
+    List<Percy> percies = new ArrayList<>();
+    for (int i = 0; i < DRIVERS; i++) {
+      StubDriver stub = new StubDriver("http://localhost/page-" + i);
+      stub.scriptMillis = 1;
+      stubs.add(stub);
+      percies.add(new Percy(stub, serverAddress, uploads));
+    }
+
+    ExecutorService workers = Executors.newFixedThreadPool(DRIVERS * THREADS_PER_DRIVER);
+    List<Future<?>> results = new ArrayList<>();
+    for (int i = 0; i < DRIVERS; i++) {
+      Percy percy = percies.get(i);
+      for (int t = 0; t < THREADS_PER_DRIVER; t++) {
+        String prefix = "driver " + i + " thread " + t;
+        results.add(workers.submit(() -> {
+          for (int n = 0; n < SNAPSHOTS_PER_THREAD; n++) {
+            percy.snapshot(prefix + " snapshot " + n);
+          }
+        }));
+      }
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    workers.shutdown();
+
+    for (Percy percy : percies) {
+      assertTrue(percy.flush(Duration.ofSeconds(30)));
+      percy.close();
+      assertEquals(THREADS_PER_DRIVER * SNAPSHOTS_PER_THREAD, percy.stats().getSnapshots());
+      assertEquals(0, percy.stats().getFailures());
+    }
+
+    assertEquals(DRIVERS * THREADS_PER_DRIVER * SNAPSHOTS_PER_THREAD, received.get());
+    for (StubDriver stub : stubs) {
+      assertEquals(1, stub.maxConcurrentScripts.get(), "driver was used by two threads at once");
+    }
+    assertTrue(maxInFlight.get() > 1, "uploads did not run in parallel");
+  }
+
+  private static void handleSnapshot(HttpExchange exchange) throws IOException {
+    int current = inFlight.incrementAndGet();
+    maxInFlight.accumulateAndGet(current, Math::max);
+
+    try {
+      StubCli.discardBody(exchange);
+      // Give other uploads a chance to overlap with this one
+      Thread.sleep(2);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      inFlight.decrementAndGet();
+    }
+
+    received.incrementAndGet();
+    StubCli.succeed(exchange);
+  }
+}
@@ -0,0 +1,144 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for caching dom.js in memory and on disk, against a stand-in for the Percy
+ * CLI that revalidates with ETags.
+ */
+public class DomScriptCacheTest {
+  // If-None-Match of each dom.js request, or "" for none
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private volatile String script = "window.PercyDOM = { version: 1 };";
+  private volatile String etag = "\"v1\"";
+  private StubCli cli;
+  private String address;
+  private Path cacheDir;
+
+  @BeforeEach
+  public void startCli(@TempDir Path cacheDir) throws IOException {
+    this.cacheDir = cacheDir;
+    DomScriptCache.useDirectory(cacheDir);
+    cli = new StubCli().handle("/percy/dom.js", exchange -> {
+      String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+      requests.add(ifNoneMatch != null ? ifNoneMatch : "");
+      if (etag.equals(ifNoneMatch)) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+
+      exchange.getResponseHeaders().add("ETag", etag);
+      StubCli.respond(exchange, 200, script);
+    }).start();
+    address = cli.address();
+  }
+
+  @AfterEach
+  public void stopCli() {
+    cli.stop();
+    DomScriptCache.useDirectory(null);
+  }
+
+  @Test
+  public void revalidatesTheDiskCopyOncePerJvm() throws Exception {
+    assertFalse(DomScriptCache.contains("1.0.0"));
+    assertEquals(script, DomScriptCache.get(address, "1.0.0"));
+    assertEquals(script, read("dom-1.0.0.js"));
+    assertEquals(etag, read("dom-1.0.0.etag"));
+
+    // Served from memory from then on
+    assertEquals(script, DomScriptCache.get(address, "1.0.0"));
+    assertEquals(1, requests.size());
+
+    // A new JVM sends the ETag it stored, and reads the script from disk on a 304
+    DomScriptCache.useDirectory(cacheDir);
+    assertTrue(DomScriptCache.contains("1.0.0"));
+    assertEquals(script, DomScriptCache.get(address, "1.0.0"));
+    assertEquals("\"v1\"", requests.get(1));
+  }
+
+  @Test
+  public void replacesTheDiskCopyWhenTheScriptChanges() throws Exception {
+    DomScriptCache.get(address, "1.0.0");
+
+    script = "window.PercyDOM = { version: 2 };";
+    etag = "\"v2\"";
+    DomScriptCache.useDirectory(cacheDir);
+
+    assertEquals(script, DomScriptCache.get(address, "1.0.0"));
+    assertEquals("\"v1\"", requests.get(1));
+    assertEquals(script, read("dom-1.0.0.js"));
+    assertEquals("\"v2\"", read("dom-1.0.0.etag"));
+  }
+
+  @Test
+  public void usesTheDiskCopyWhenTheCliIsGone() throws Exception {
+    String cached = DomScriptCache.get(address, "1.0.0");
+    cli.stop();
+    DomScriptCache.useDirectory(cacheDir);
+
+    assertEquals(cached, DomScriptCache.get(address, "1.0.0"));
+    // Without a version, any cached script will do
+    assertTrue(DomScriptCache.contains(null));
+    assertEquals(cached, DomScriptCache.get(address, null));
+    // But not another version's
+    assertThrows(IOException.class, () -> DomScriptCache.get(address, "2.0.0"));
+  }
+
+  @Test
+  public void ignoresDiskCopiesThatDoNotMatchTheirHash() throws Exception {
+    DomScriptCache.get(address, "1.0.0");
+    write("dom-1.0.0.js", "window.PercyDOM = { planted: true };");
+
+    // Downloaded again, without sending the ETag of the changed copy
+    DomScriptCache.useDirectory(cacheDir);
+    assertFalse(DomScriptCache.contains("1.0.0"));
+    assertEquals(script, DomScriptCache.get(address, "1.0.0"));
+    assertEquals("", requests.get(1));
+
+    // And never used when the CLI is gone, whatever the version
+    write("dom-1.0.0.js", "window.PercyDOM = { planted: true };");
+    cli.stop();
+    DomScriptCache.useDirectory(cacheDir);
+    assertFalse(DomScriptCache.contains(null));
+    assertThrows(IOException.class, () -> DomScriptCache.get(address, "1.0.0"));
+    assertThrows(IOException.class, () -> DomScriptCache.get(address, null));
+  }
+
+  @Test
+  public void createsTheCacheDirectoryForTheUserOnly() throws Exception {
+    Path nested = cacheDir.resolve("cache").resolve("percy");
+    DomScriptCache.useDirectory(nested);
+    DomScriptCache.get(address, "1.0.0");
+
+    assertTrue(Files.isReadable(nested.resolve("dom-1.0.0.js")));
+    if (nested.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(nested)));
+    }
+  }
+
+  private void write(String file, String contents) throws IOException {
+    Files.write(cacheDir.resolve(file), contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String read(String file) throws IOException {
+    return new String(Files.readAllBytes(cacheDir.resolve(file)), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,160 @@
+package io.percy.selenium;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests for serializing DevTools DOMSnapshots the way PercyDOM does.
+ */
+public class DomSnapshotSerializerTest {
+  @Test
+  public void serializesTheDocumentLikePercyDom() {
+    Snapshot snapshot = new Snapshot("http://localhost/page");
+    int document = snapshot.node(-1, 9, "#document", null);
+    snapshot.node(document, 10, "html", null);
+    int html = snapshot.node(document, 1, "HTML", null);
+    int head = snapshot.node(html, 1, "HEAD", null);
+    int script = snapshot.node(head, 1, "SCRIPT", null);
+    snapshot.node(script, 3, "#text", "if (a < b && c) {}");
+    int body = snapshot.node(html, 1, "BODY", null, "class", "a \"b\" & c");
+    snapshot.node(body, 8, "#comment", " note ");
+    int p = snapshot.node(body, 1, "P", null);
+    snapshot.node(p, 3, "#text", "1 < 2 & \"3\"\u00A0");
+    snapshot.pseudo(snapshot.node(p, 1, "::before", null));
+    snapshot.node(body, 1, "BR", null);
+    int svg = snapshot.node(body, 1, "svg", null, "viewBox", "0 0 1 1");
+    snapshot.node(svg, 1, "linearGradient", null);
+
+    assertEquals("<!DOCTYPE html><html><head><script>if (a < b && c) {}</script></head>"
+      + "<body class=\"a &quot;b&quot; &amp; c\"><!-- note --><p>1 &lt; 2 &amp; \"3\"&nbsp;</p><br>"
+      + "<svg viewBox=\"0 0 1 1\"><linearGradient></linearGradient></svg></body></html>",
+      DomSnapshotSerializer.serialize(snapshot.toMap()));
+    assertEquals("http://localhost/page", DomSnapshotSerializer.url(snapshot.toMap()));
+  }
+
+  @Test
+  public void writesTheCurrentStateOfFormFields() {
+    Snapshot snapshot = new Snapshot("http://localhost/");
+    int document = snapshot.node(-1, 9, "#document", null);
+    int html = snapshot.node(document, 1, "HTML", null);
+    int body = snapshot.node(html, 1, "BODY", null);
+    snapshot.inputValue(snapshot.node(body, 1, "INPUT", null, "value", "old", "name", "q"), "new");
+    snapshot.checked(snapshot.node(body, 1, "INPUT", null, "type", "checkbox"));
+    int textarea = snapshot.node(body, 1, "TEXTAREA", null);
+    snapshot.node(textarea, 3, "#text", "old");
+    snapshot.inputValue(textarea, "<typed>");
+    int select = snapshot.node(body, 1, "SELECT", null);
+    snapshot.node(select, 1, "OPTION", null, "selected", "");
+    snapshot.selected(snapshot.node(select, 1, "OPTION", null));
+
+    assertEquals("<!DOCTYPE html><html><body><input name=\"q\" value=\"new\"><input type=\"checkbox\" checked=\"\">"
+      + "<textarea>&lt;typed&gt;</textarea><select><option></option><option selected=\"\"></option></select>"
+      + "</body></html>", DomSnapshotSerializer.serialize(snapshot.toMap()));
+  }
+
+  @Test
+  public void leavesCanvasesToPercyDom() {
+    Snapshot snapshot = new Snapshot("http://localhost/");
+    int document = snapshot.node(-1, 9, "#document", null);
+    int html = snapshot.node(document, 1, "HTML", null);
+    snapshot.node(html, 1, "CANVAS", null);
+
+    assertNull(DomSnapshotSerializer.serialize(snapshot.toMap()));
+  }
+
+  @Test
+  public void leavesCssomStylesToPercyDom() {
+    Snapshot written = new Snapshot("http://localhost/");
+    int document = written.node(-1, 9, "#document", null);
+    int head = written.node(written.node(document, 1, "HTML", null), 1, "HEAD", null);
+    written.node(written.node(head, 1, "STYLE", null), 3, "#text", "p { color: red }");
+
+    assertEquals("<!DOCTYPE html><html><head><style>p { color: red }</style></head></html>",
+      DomSnapshotSerializer.serialize(written.toMap()));
+
+    // Rules added with insertRule leave the element without text
+    Snapshot inserted = new Snapshot("http://localhost/");
+    document = inserted.node(-1, 9, "#document", null);
+    head = inserted.node(inserted.node(document, 1, "HTML", null), 1, "HEAD", null);
+    inserted.node(head, 1, "STYLE", null, "data-styled", "active");
+
+    assertNull(DomSnapshotSerializer.serialize(inserted.toMap()));
+  }
+
+  // Builds a single document DOMSnapshot.captureSnapshot result
+  @SuppressWarnings("unchecked")
+  private static class Snapshot {
+    private final List<String> strings = new ArrayList<>();
+    private final List<Integer> parents = new ArrayList<>();
+    private final List<Integer> types = new ArrayList<>();
+    private final List<Integer> names = new ArrayList<>();
+    private final List<Integer> values = new ArrayList<>();
+    private final List<List<Integer>> attributes = new ArrayList<>();
+    private final Map<String, Object> nodes = new HashMap<>();
+    private final Map<String, Object> document = new HashMap<>();
+
+    Snapshot(String url) {
+      document.put("documentURL", string(url));
+      document.put("nodes", nodes);
+    }
+
+    int node(int parent, int type, String name, String value, String... attributePairs) {
+      List<Integer> attributeIndexes = new ArrayList<>();
+      for (String attribute : attributePairs) { attributeIndexes.add(string(attribute)); }
+      parents.add(parent);
+      types.add(type);
+      names.add(string(name));
+      values.add(value != null ? string(value) : -1);
+      attributes.add(attributeIndexes);
+      return parents.size() - 1;
+    }
+
+    void inputValue(int node, String value) {
+      Map<String, Object> data = rare("inputValue", node);
+      ((List<Integer>) data.computeIfAbsent("value", key -> new ArrayList<Integer>())).add(string(value));
+    }
+
+    void checked(int node) { rare("inputChecked", node); }
+
+    void selected(int node) { rare("optionSelected", node); }
+
+    void pseudo(int node) { rare("pseudoType", node); }
+
+    private Map<String, Object> rare(String field, int node) {
+      Map<String, Object> data = (Map<String, Object>) nodes.computeIfAbsent(field, key -> new HashMap<String, Object>());
+      List<Integer> index = (List<Integer>) data.computeIfAbsent("index", key -> new ArrayList<Integer>());
+      if (!index.contains(node)) { index.add(node); }
+      return data;
+    }
+
+    private int string(String value) {
+      int index = strings.indexOf(value);
+      if (index == -1) {
+        strings.add(value);
+        index = strings.size() - 1;
+      }
+      return index;
+    }
+
+    Map<String, Object> toMap() {
+      nodes.put("parentIndex", parents);
+      nodes.put("nodeType", types);
+      nodes.put("nodeName", names);
+      nodes.put("nodeValue", values);
+      nodes.put("attributes", attributes);
+
+      Map<String, Object> snapshot = new HashMap<>();
+      snapshot.put("documents", Collections.singletonList(document));
+      snapshot.put("strings", strings);
+      return snapshot;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for keeping captured snapshots within a byte budget.
+ */
+public class MemoryBudgetTest {
+  @Test
+  public void blocksUntilUploadsFreeEnoughRoom() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.BLOCK, 60000);
+    MemoryBudget.Reservation first = budget.reserve(80);
+
+    CompletableFuture<MemoryBudget.Reservation> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return budget.reserve(50);
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    Thread.sleep(100);
+    assertFalse(second.isDone());
+
+    first.release();
+    assertNotNull(second.get(5, TimeUnit.SECONDS));
+    assertEquals(50, budget.used());
+    assertEquals(80, budget.peak());
+  }
+
+  @Test
+  public void heldSnapshotsGiveBackTheRoomOfTheirSpilledDoms() throws Exception {
+    Path directory = Files.createTempDirectory("percy-spill");
+    StringBuilder dom = new StringBuilder();
+    for (int i = 0; i < 10000; i++) { dom.append("<p>held</p>"); }
+    SnapshotPayload payload = new SnapshotPayload("Held", "http://localhost/", dom.toString(), null, null, false,
+      null, "client", "environment");
+    MemoryBudget budget = new MemoryBudget(payload.estimatedSize() + 4096, MemoryBudget.Policy.BLOCK, 60000);
+    MemoryBudget.Reservation held = budget.reserve(payload.estimatedSize());
+
+    CompletableFuture<MemoryBudget.Reservation> next = CompletableFuture.supplyAsync(() -> {
+      try {
+        return budget.reserve(payload.estimatedSize());
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    Thread.sleep(100);
+    assertFalse(next.isDone());
+
+    SnapshotPayload spilled = payload.spill(directory);
+    held.shrink(spilled.heapSize());
+    assertNotNull(next.get(5, TimeUnit.SECONDS));
+    assertEquals(spilled.heapSize() + payload.estimatedSize(), budget.used());
+    spilled.discard();
+  }
+
+  @Test
+  public void stopsBlockingAfterTheWait() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.BLOCK, 50);
+    budget.reserve(80);
+
+    assertNotNull(budget.reserve(50));
+    assertEquals(130, budget.used());
+  }
+
+  @Test
+  public void dropsTheOldestSnapshotsThatArentBeingUploaded() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.DROP_OLDEST, 0);
+    List<String> dropped = new CopyOnWriteArrayList<>();
+    MemoryBudget.Reservation a = budget.reserve(40);
+    MemoryBudget.Reservation b = budget.reserve(40);
+    MemoryBudget.Reservation c = budget.reserve(20);
+    a.allowDrop(() -> dropped.add("a"));
+    b.allowDrop(() -> dropped.add("b"));
+    c.allowDrop(() -> dropped.add("c"));
+    assertTrue(a.claim());
+
+    budget.reserve(50);
+
+    assertEquals(Arrays.asList("b", "c"), dropped);
+    assertFalse(b.claim());
+    assertEquals(90, budget.used());
+  }
+
+  @Test
+  public void spillsSnapshotsThatDontFit() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.SPILL, 0);
+    budget.reserve(80);
+
+    assertNull(budget.reserve(50));
+    assertEquals(80, budget.used());
+  }
+
+  @Test
+  public void streamsSpilledDomsFromDisk() throws Exception {
+    Path directory = Files.createTempDirectory("percy-spill");
+    SnapshotPayload payload = new SnapshotPayload("Spilled", "http://localhost/", "<p class=\"x\">café</p>",
+      null, null, false, null, "client", "environment");
+    ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+    payload.writeTo(inMemory);
+
+    SnapshotPayload spilled = payload.spill(directory);
+    ByteArrayOutputStream fromDisk = new ByteArrayOutputStream();
+    spilled.writeTo(fromDisk);
+
+    assertTrue(spilled.isSpilled());
+    assertEquals(inMemory.toString("UTF-8"), fromDisk.toString("UTF-8"));
+
+    spilled.discard();
+    assertEquals(0, directory.toFile().list().length);
+  }
+
+  @Test
+  public void spillsDomsReadInSlices() throws Exception {
+    Path directory = Files.createTempDirectory("percy-spill");
+    String dom = "<p title=\" \ud83d\ude00\">\n</p>";
+    SnapshotPayload whole = new SnapshotPayload("Sliced", "http://localhost/", dom, null, null, false, null,
+      "client", "environment");
+    ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+    whole.writeTo(inMemory);
+
+    // Three characters at a time, splitting the emoji's surrogate pair
+    int[] offset = { 0 };
+    SnapshotPayload sliced = new SnapshotPayload("Sliced", "http://localhost/", null, null, null, false, null,
+      "client", "environment").spill(directory, () -> {
+        if (offset[0] >= dom.length()) { return null; }
+        String slice = dom.substring(offset[0], Math.min(offset[0] + 3, dom.length()));
+        offset[0] += slice.length();
+        return slice;
+      });
+    ByteArrayOutputStream fromDisk = new ByteArrayOutputStream();
+    sliced.writeTo(fromDisk);
+
+    assertEquals(inMemory.toString("UTF-8"), fromDisk.toString("UTF-8"));
+    sliced.discard();
+  }
+}
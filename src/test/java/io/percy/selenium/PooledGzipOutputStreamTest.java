@@ -0,0 +1,96 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests for gzip-encoding request bodies with pooled deflaters.
+ */
+public class PooledGzipOutputStreamTest {
+  @Test
+  public void roundTripsThroughGzipInputStream() throws Exception {
+    // Compressible markup followed by bytes that aren't, written in pieces of many sizes
+    ByteArrayOutputStream original = new ByteArrayOutputStream();
+    for (int i = 0; i < 20000; i++) { original.write(("<p class=\"row\">café 😀 " + i + "</p>\n").getBytes("UTF-8")); }
+    byte[] noise = new byte[100000];
+    new Random(42).nextBytes(noise);
+    original.write(noise);
+    byte[] body = original.toByteArray();
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream gzip = new PooledGzipOutputStream(compressed)) {
+      int offset = 0;
+      for (int size = 1; offset < body.length; size = size * 2 % 65521) {
+        int length = Math.min(size, body.length - offset);
+        if (length == 1) {
+          gzip.write(body[offset]);
+        } else {
+          gzip.write(body, offset, length);
+        }
+        offset += length;
+      }
+    }
+
+    assertArrayEquals(body, gunzip(compressed.toByteArray()));
+  }
+
+  @Test
+  public void roundTripsWithReusedDeflaters() throws Exception {
+    // Far more bodies than the pool holds, so deflaters are reset and reused, and some ended
+    for (int i = 0; i < Runtime.getRuntime().availableProcessors() * 4; i++) {
+      byte[] body = ("{\"name\":\"snapshot " + i + "\"}").getBytes("UTF-8");
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (OutputStream gzip = new PooledGzipOutputStream(compressed)) {
+        gzip.write(body);
+      }
+
+      assertArrayEquals(body, gunzip(compressed.toByteArray()));
+    }
+
+    ByteArrayOutputStream empty = new ByteArrayOutputStream();
+    new PooledGzipOutputStream(empty).close();
+    assertEquals(0, gunzip(empty.toByteArray()).length);
+  }
+
+  @Test
+  public void gzipBodiesRoundTripWithoutClosingTheRequest() throws Exception {
+    SnapshotPayload payload = new SnapshotPayload("Gzipped", "http://localhost/", "<html><body>\"gzipped\"</body></html>",
+      null, null, false, null, "client", "environment");
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    payload.writeTo(expected);
+
+    boolean[] isClosed = new boolean[1];
+    ByteArrayOutputStream request = new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        isClosed[0] = true;
+      }
+    };
+    new GzipBody(payload).writeTo(request);
+
+    assertFalse(isClosed[0]);
+    assertEquals("gzip", new GzipBody(payload).contentEncoding());
+    assertArrayEquals(expected.toByteArray(), gunzip(request.toByteArray()));
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[8192];
+      for (int n; (n = in.read(buffer)) != -1;) { out.write(buffer, 0, n); }
+    }
+
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,169 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for how a Percy instance follows the CLI coming and going, using a stub
+ * driver and a stand-in for the Percy CLI.
+ */
+public class RecoveryTest {
+  private final AtomicInteger healthchecks = new AtomicInteger();
+  private final AtomicInteger attempts = new AtomicInteger();
+  private final AtomicInteger received = new AtomicInteger();
+  // Number of upcoming snapshot requests to answer with a 503
+  private final AtomicInteger failNext = new AtomicInteger();
+  private StubCli cli;
+
+  // Where dom.js is cached, instead of the user's cache directory
+  @BeforeEach
+  public void useCacheDirectory(@TempDir Path cacheDir) {
+    DomScriptCache.useDirectory(cacheDir);
+  }
+
+  @AfterEach
+  public void stopServer() {
+    if (cli != null) { cli.stop(); }
+    DomScriptCache.useDirectory(null);
+  }
+
+  @Test
+  public void holdsSnapshotsUntilTheCliIsBack() throws Exception {
+    startCli(0);
+    int port = cli.port();
+    Percy percy = new Percy(new StubDriver(), cli.address(), null);
+
+    percy.snapshot("before");
+    assertEquals(PercyState.ENABLED, percy.getState());
+    assertEquals(1, received.get());
+
+    cli.stop();
+    percy.snapshot("while away 1");
+    percy.snapshot("while away 2");
+    assertEquals(PercyState.DEGRADED, percy.getState());
+    assertEquals(1, received.get());
+
+    startCli(port);
+    long deadline = System.currentTimeMillis() + 15000;
+    while (percy.stats().getSnapshots() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+
+    assertEquals(PercyState.ENABLED, percy.getState());
+    assertEquals(3, received.get());
+    assertEquals(3, percy.stats().getSnapshots());
+    assertEquals(0, percy.stats().getFailures());
+  }
+
+  @Test
+  public void retriesServerErrors() throws Exception {
+    startCli(0);
+    failNext.set(2);
+    Percy percy = new Percy(new StubDriver(), cli.address(), null);
+
+    percy.snapshot("flaky");
+
+    assertEquals(3, attempts.get());
+    assertEquals(1, received.get());
+    assertEquals(1, percy.stats().getSnapshots());
+    assertEquals(0, percy.stats().getFailures());
+    assertEquals(2, percy.stats().getRetries());
+  }
+
+  @Test
+  public void opensTheCircuitWhenTheCliKeepsFailing() throws Exception {
+    startCli(0);
+    failNext.set(Integer.MAX_VALUE);
+    Percy percy = new Percy(new StubDriver(), cli.address(), null);
+
+    // The first snapshot uses up its retries, the second trips the circuit, and the
+    // third isn't even sent
+    percy.snapshot("overloaded 1");
+    percy.snapshot("overloaded 2");
+    percy.snapshot("overloaded 3");
+
+    assertEquals(5, attempts.get());
+    assertEquals(0, received.get());
+    assertEquals(PercyState.ENABLED, percy.getState());
+    assertEquals(1, percy.stats().getCircuitTrips());
+
+    // Once the circuit half-opens, the held snapshots go through before close returns
+    failNext.set(0);
+    percy.close();
+
+    assertEquals(3, received.get());
+    assertEquals(3, percy.stats().getSnapshots());
+    assertEquals(0, percy.stats().getFailures());
+  }
+
+  @Test
+  public void uploadsOnTheCallingThreadAfterClose() throws Exception {
+    startCli(0);
+    Percy percy = new Percy(new StubDriver(), cli.address(), null);
+    percy.snapshotAsync("before close").get(30, TimeUnit.SECONDS);
+    percy.close();
+
+    // No new upload queue is started, to be left running
+    Thread[] uploadedOn = new Thread[1];
+    percy.addSnapshotListener(metrics -> uploadedOn[0] = Thread.currentThread());
+    SnapshotResult result = percy.snapshotAsync("after close").get(30, TimeUnit.SECONDS);
+
+    assertEquals(SnapshotResult.Status.UPLOADED, result.getStatus());
+    assertEquals(2, received.get());
+    assertEquals(Thread.currentThread(), uploadedOn[0]);
+  }
+
+  @Test
+  public void killSwitchSkipsTheCliEntirely() throws Exception {
+    startCli(0);
+    System.setProperty("percy.enabled", "false");
+    try {
+      WebDriver unusable = (WebDriver) Proxy.newProxyInstance(
+        RecoveryTest.class.getClassLoader(),
+        new Class<?>[] { WebDriver.class, JavascriptExecutor.class },
+        (proxy, method, args) -> { throw new UnsupportedOperationException(method.getName()); });
+      Percy percy = new Percy(unusable, cli.address(), null);
+
+      assertEquals(PercyState.DISABLED, percy.getState());
+      percy.snapshot("skipped");
+      percy.close();
+    } finally {
+      System.clearProperty("percy.enabled");
+    }
+
+    assertEquals(0, healthchecks.get());
+    assertEquals(0, received.get());
+  }
+
+  private void startCli(int port) throws IOException {
+    cli = new StubCli(port);
+    cli.handle("/percy/healthcheck", exchange -> {
+      healthchecks.incrementAndGet();
+      exchange.getResponseHeaders().add("x-percy-core-version", StubCli.CORE_VERSION);
+      StubCli.succeed(exchange);
+    });
+    cli.handle("/percy/snapshot", exchange -> {
+      attempts.incrementAndGet();
+      StubCli.discardBody(exchange);
+      if (failNext.getAndDecrement() > 0) {
+        StubCli.respond(exchange, 503, "{\"success\":false}");
+        return;
+      }
+      received.incrementAndGet();
+      StubCli.succeed(exchange);
+    });
+    cli.start();
+  }
+}
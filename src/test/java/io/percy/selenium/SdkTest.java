@@ -1,12 +1,17 @@
 package io.percy.selenium;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.openqa.selenium.By;
 import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.Keys;
@@ -95,4 +100,17 @@ public class SdkTest {
     driver.get("https://sdk-test.percy.dev");
     percy.snapshot("Site with HTTPS, strict CSP, CORS and HSTS setup");
   }
+
+  @Test
+  public void takesSnapshotsWithBackgroundUploads() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try (Percy asyncPercy = new Percy(driver, executor)) {
+      driver.get(TEST_URL);
+      asyncPercy.snapshot("Snapshot with background upload -- #1");
+      asyncPercy.snapshot("Snapshot with background upload -- #2", Arrays.asList(768, 992, 1200));
+      assertTrue(asyncPercy.flush(Duration.ofSeconds(30)));
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
@@ -0,0 +1,83 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for writing snapshot payloads from DOMs held in different forms.
+ */
+public class SnapshotPayloadTest {
+  @Test
+  public void writesDomsCompressedInTheBrowser() throws Exception {
+    StringBuilder dom = new StringBuilder("<html>");
+    for (int i = 0; i < 5000; i++) { dom.append("<p class=\"row\">café 😀 ").append(i).append("</p>\n"); }
+    dom.append("</html>");
+
+    SnapshotPayload whole = new SnapshotPayload("Compressed", "http://localhost/", dom.toString(), null, null, false,
+      null, "client", "environment");
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    whole.writeTo(expected);
+
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+      gzip.write(dom.toString().getBytes("UTF-8"));
+    }
+    SnapshotPayload compressed = new SnapshotPayload("Compressed", "http://localhost/", null, null, null, false, null,
+      "client", "environment").withGzippedDom(gzipped.toByteArray(), dom.length());
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    compressed.writeTo(actual);
+
+    assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+    assertEquals(whole.estimatedSize(), compressed.estimatedSize());
+  }
+
+  @Test
+  public void escapesJsonStrings() throws Exception {
+    assertEquals("null", json(null));
+    assertEquals("\"\"", json(""));
+    assertEquals("\"<p class=\\\"a\\\">C:\\\\dir</p>\"", json("<p class=\"a\">C:\\dir</p>"));
+    assertEquals("\"\\n\\r\\t\\b\\f\\u0000\\u001f \u007f\"", json("\n\r\t\b\f\u0000\u001f \u007f"));
+    // Non-ASCII passes through as is, for the writer to encode
+    assertEquals("\"café 😀 \u2028\"", json("café 😀 \u2028"));
+
+    // Every character below 0x20 is escaped, and reads back as itself
+    StringBuilder controls = new StringBuilder("\"\\/");
+    for (char c = 0; c < 0x20; c++) { controls.append(c); }
+    String written = json(controls.toString());
+    for (char c = 0; c < 0x20; c++) { assertEquals(-1, written.indexOf(c)); }
+    assertEquals(controls.toString(), new JSONObject("{\"value\":" + written + "}").getString("value"));
+  }
+
+  @Test
+  public void joinsSurrogatePairsSplitAcrossWrites() throws Exception {
+    // Split between the emoji's high and low surrogates, with an escape right after
+    String dom = "<p>😀\"emoji\"</p>";
+    int split = dom.indexOf("😀") + 1;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+      writer.write('"');
+      SnapshotPayload.writeJsonChars(writer, dom.substring(0, split));
+      SnapshotPayload.writeJsonChars(writer, dom.substring(split));
+      writer.write('"');
+    }
+
+    assertEquals("\"<p>😀\\\"emoji\\\"</p>\"", bytes.toString("UTF-8"));
+  }
+
+  private static String json(String value) throws IOException {
+    StringWriter writer = new StringWriter();
+    SnapshotPayload.writeJsonString(writer, value);
+    return writer.toString();
+  }
+}
@@ -0,0 +1,103 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for spooling snapshots to disk and replaying them to a stand-in for the
+ * Percy CLI.
+ */
+public class SnapshotSpoolTest {
+  // DOMs of the snapshot requests the CLI has seen
+  private final List<String> received = new CopyOnWriteArrayList<>();
+  private StubCli cli;
+  private String address;
+
+  @BeforeEach
+  public void startCli() throws IOException {
+    cli = new StubCli().handle("/percy/snapshot", exchange -> {
+      String request = new String(StubCli.readBody(exchange), StandardCharsets.UTF_8);
+      received.add(request);
+      StubCli.respond(exchange, request.contains("rejected") ? 400 : 200, "{}");
+    }).start();
+    address = cli.address();
+  }
+
+  @AfterEach
+  public void stopCli() {
+    cli.stop();
+  }
+
+  @Test
+  public void replaysPastFailedAppendsAndRejectedSnapshots() throws Exception {
+    Path directory = Files.createTempDirectory("percy-spool");
+    SnapshotSpool spool = SnapshotSpool.forDirectory(directory);
+    spool.append(payload("<p>first</p>"));
+    spool.append(payload("<p>rejected</p>"));
+    // A payload whose spilled DOM is gone fails partway through being written
+    SnapshotPayload broken = payload("<p>broken</p>").spill(Files.createTempDirectory("percy-spill"));
+    broken.discard();
+    assertThrows(IOException.class, () -> spool.append(broken));
+    spool.append(payload("<p>last</p>"));
+    spool.close();
+
+    assertEquals(2, SnapshotSpool.replay(directory, address));
+    assertEquals(3, received.size());
+    assertEquals(0, directory.toFile().list().length);
+
+    // Nothing is sent twice
+    assertEquals(0, SnapshotSpool.replay(directory, address));
+    assertEquals(3, received.size());
+  }
+
+  @Test
+  public void replaysSegmentsThisJvmIsStillAppendingTo() throws Exception {
+    Path directory = Files.createTempDirectory("percy-spool");
+    SnapshotSpool spool = SnapshotSpool.forDirectory(directory);
+    spool.append(payload("<p>first</p>"));
+
+    assertEquals(1, SnapshotSpool.replay(directory, address));
+
+    // Later appends go to a new segment
+    spool.append(payload("<p>second</p>"));
+    assertEquals(1, SnapshotSpool.replay(directory, address));
+    assertEquals(2, received.size());
+    assertEquals(0, directory.toFile().list().length);
+  }
+
+  @Test
+  public void keepsSegmentsWithATornRecord() throws Exception {
+    Path directory = Files.createTempDirectory("percy-spool");
+    SnapshotSpool spool = SnapshotSpool.forDirectory(directory);
+    spool.append(payload("<p>first</p>"));
+    spool.close();
+
+    // As a process killed while appending leaves it: a length of 0 and part of a body
+    Path segment = directory.toFile().listFiles()[0].toPath();
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.allocate(Long.BYTES + 4).put(Long.BYTES, (byte) '{'));
+    }
+
+    assertEquals(1, SnapshotSpool.replay(directory, address));
+    assertEquals(1, received.size());
+    assertEquals(1, directory.toFile().list().length);
+  }
+
+  private static SnapshotPayload payload(String dom) {
+    return new SnapshotPayload("Spooled", "http://localhost/", dom, null, null, false, null, "client", "environment");
+  }
+}
@@ -0,0 +1,139 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server that stands in for the Percy CLI in tests.
+ *
+ * It answers the healthcheck with a core version no real CLI reports, serves a
+ * dom.js that only defines `PercyDOM`, and accepts every snapshot, keeping its
+ * body. Tests replace any of these with `handle`, even while the server runs.
+ */
+class StubCli {
+    // Core version reported by the healthcheck
+    static final String CORE_VERSION = "1.0.0-stub";
+
+    // Served as dom.js
+    static final String DOM_JS = "window.PercyDOM = {};";
+
+    private static final String SUCCESS = "{\"success\":true}";
+
+    // Request bodies of the snapshots accepted by the default handler
+    final List<byte[]> snapshots = new CopyOnWriteArrayList<>();
+
+    // Handlers by request path
+    private final Map<String, HttpHandler> handlers = new ConcurrentHashMap<>();
+
+    private final HttpServer server;
+
+    /**
+     * Create a stand-in listening on a free port. Call `start` once it is set up.
+     */
+    StubCli() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param port The port to listen on, e.g. to come back where a stopped one was.
+     */
+    StubCli(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", exchange -> {
+            HttpHandler handler = handlers.get(exchange.getRequestURI().getPath());
+            if (handler != null) {
+                handler.handle(exchange);
+            } else {
+                respond(exchange, 404, "{\"success\":false}");
+            }
+        });
+
+        handle("/percy/healthcheck", exchange -> {
+            exchange.getResponseHeaders().add("x-percy-core-version", CORE_VERSION);
+            respond(exchange, 200, SUCCESS);
+        });
+        handle("/percy/dom.js", exchange -> respond(exchange, 200, DOM_JS));
+        handle("/percy/snapshot", exchange -> {
+            snapshots.add(readBody(exchange));
+            respond(exchange, 200, SUCCESS);
+        });
+    }
+
+    /**
+     * Answer requests for `path` with `handler` from now on.
+     */
+    StubCli handle(String path, HttpHandler handler) {
+        handlers.put(path, handler);
+        return this;
+    }
+
+    /**
+     * Handle requests on `executor` rather than on the server's own thread.
+     */
+    StubCli executor(Executor executor) {
+        server.setExecutor(executor);
+        return this;
+    }
+
+    StubCli start() {
+        server.start();
+        return this;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    String address() {
+        return "http://localhost:" + port();
+    }
+
+    static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1;) { body.write(buffer, 0, n); }
+        }
+
+        return body.toByteArray();
+    }
+
+    /**
+     * Read a request body without keeping it.
+     */
+    static void discardBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[65536];
+            while (in.read(buffer) != -1) {}
+        }
+    }
+
+    static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static void succeed(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, SUCCESS);
+    }
+}
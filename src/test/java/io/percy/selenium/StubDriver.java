@@ -0,0 +1,134 @@
+package io.percy.selenium;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+
+/**
+ * WebDriver for tests that only runs capture scripts, answering each with an empty
+ * page at a fixed URL.
+ *
+ * Its page keeps session storage, but never `PercyDOM`, between snapshots. It
+ * records the scripts it was sent, and whether two threads ever ran a script on it
+ * at the same time.
+ */
+public class StubDriver implements WebDriver, JavascriptExecutor {
+    final List<String> scripts = new CopyOnWriteArrayList<>();
+    final AtomicInteger maxConcurrentScripts = new AtomicInteger();
+
+    // Whether the page's CSP stops stored dom.js from being evaluated
+    boolean isEvalBlocked;
+
+    // How long each script runs, so scripts from different threads would overlap
+    long scriptMillis;
+
+    private final AtomicInteger runningScripts = new AtomicInteger();
+    private final String url;
+    private volatile boolean isDomJsStored;
+
+    StubDriver() {
+        this("http://localhost/page");
+    }
+
+    StubDriver(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @return The number of scripts that read dom.js from storage.
+     */
+    int fromStorage() {
+        return (int) scripts.stream().filter(script -> script.contains("getItem(domKey)")).count();
+    }
+
+    /**
+     * @return The number of scripts that carried dom.js itself.
+     */
+    int withDomJs() {
+        return (int) scripts.stream().filter(script -> script.contains("var percyDomJs = function () {")).count();
+    }
+
+    @Override
+    public Object executeScript(String script, Object... args) {
+        maxConcurrentScripts.accumulateAndGet(runningScripts.incrementAndGet(), Math::max);
+        try {
+            scripts.add(script);
+            if (script.contains("getItem(domKey)") && (!isDomJsStored || isEvalBlocked)) {
+                Map<String, Object> missing = new HashMap<>();
+                missing.put("domMissing", true);
+                missing.put("evalBlocked", isDomJsStored);
+                missing.put("url", url);
+                return missing;
+            }
+            if (script.contains("setItem(domKey")) { isDomJsStored = true; }
+            if (scriptMillis > 0) { Thread.sleep(scriptMillis); }
+
+            return snapshot();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } finally {
+            runningScripts.decrementAndGet();
+        }
+    }
+
+    Map<String, Object> snapshot() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("domSnapshot", "<html><body></body></html>");
+        result.put("url", url);
+        return result;
+    }
+
+    @Override
+    public String getCurrentUrl() { return url; }
+
+    @Override
+    public Object executeAsyncScript(String script, Object... args) { throw new UnsupportedOperationException(); }
+
+    @Override
+    public void get(String url) { throw new UnsupportedOperationException(); }
+
+    @Override
+    public String getTitle() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public List<WebElement> findElements(By by) { throw new UnsupportedOperationException(); }
+
+    @Override
+    public WebElement findElement(By by) { throw new UnsupportedOperationException(); }
+
+    @Override
+    public String getPageSource() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public void close() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public void quit() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public Set<String> getWindowHandles() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public String getWindowHandle() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public TargetLocator switchTo() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public Navigation navigate() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public Options manage() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public String toString() { return "StubDriver " + url; }
+}
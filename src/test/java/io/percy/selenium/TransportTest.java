@@ -0,0 +1,107 @@
+package io.percy.selenium;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the transports that carry requests to the CLI.
+ */
+public class TransportTest {
+  private final List<String> snapshots = new CopyOnWriteArrayList<>();
+  private StubCli cli;
+
+  // Where dom.js is cached, instead of the user's cache directory
+  @BeforeEach
+  public void useCacheDirectory(@TempDir Path cacheDir) {
+    DomScriptCache.useDirectory(cacheDir);
+  }
+
+  @AfterEach
+  public void cleanUp() {
+    MemoryTransport.unbind("transport-test");
+    if (cli != null) { cli.stop(); }
+    DomScriptCache.useDirectory(null);
+  }
+
+  @Test
+  public void snapshotsThroughTheMemoryTransport() throws Exception {
+    String address = MemoryTransport.bind("transport-test", request -> {
+      switch (request.getPath()) {
+        case "/percy/healthcheck":
+          return new TransportResponse(200,
+            Collections.singletonMap("x-percy-core-version", StubCli.CORE_VERSION), "{\"success\":true}");
+        case "/percy/dom.js":
+          return new TransportResponse(200, Collections.emptyMap(), StubCli.DOM_JS);
+        default:
+          snapshots.add(decode(request.readBody(), request.getHeader("Content-Encoding")));
+          return new TransportResponse(200, Collections.emptyMap(), "{\"success\":true}");
+      }
+    });
+    Percy percy = new Percy(new StubDriver(), address, null);
+
+    percy.snapshot("in memory");
+
+    assertEquals(PercyState.ENABLED, percy.getState());
+    assertEquals(1, snapshots.size());
+    assertEquals("in memory", new JSONObject(snapshots.get(0)).getString("name"));
+    assertEquals(1, percy.stats().getSnapshots());
+  }
+
+  @Test
+  public void memoryTransportFailsLikeAStoppedCli() {
+    assertThrows(ConnectException.class,
+      () -> new MemoryTransport().healthcheck("memory://transport-test", 1000));
+  }
+
+  @Test
+  public void jdkTransportStreamsToTheCli() throws Exception {
+    cli = new StubCli().handle("/percy/snapshot", exchange -> {
+      snapshots.add(decode(StubCli.readBody(exchange), exchange.getRequestHeaders().getFirst("Content-Encoding")));
+      StubCli.succeed(exchange);
+    }).start();
+
+    String address = cli.address();
+    SnapshotPayload payload = new SnapshotPayload("over jdk", "http://localhost/page",
+      "<html><body>" + new String(new char[100000]).replace('\0', 'x') + "</body></html>",
+      null, null, false, null, "percy-java-selenium/test", "selenium-java; test");
+    TransportResponse response = new JdkHttpTransport().postSnapshot(address, new GzipBody(payload));
+
+    assertTrue(response.isSuccessful());
+    assertEquals("{\"success\":true}", response.getBody());
+    assertEquals(1, snapshots.size());
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    payload.writeTo(expected);
+    assertArrayEquals(expected.toByteArray(), snapshots.get(0).getBytes("UTF-8"));
+  }
+
+  private static String decode(byte[] body, String encoding) throws IOException {
+    InputStream in = new ByteArrayInputStream(body);
+    if ("gzip".equals(encoding)) { in = new GZIPInputStream(in); }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n; (n = in.read(buffer)) != -1;) { out.write(buffer, 0, n); }
+
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,127 @@
+package io.percy.selenium;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Tests for the `java.net.http` transport against a stand-in for the Percy CLI.
+ */
+public class HttpClientTransportTest {
+  private final PercyTransport transport = new HttpClientTransport();
+  private final List<byte[]> bodies = new CopyOnWriteArrayList<>();
+  private final List<String> lengths = new CopyOnWriteArrayList<>();
+  private StubCli cli;
+  private String address;
+
+  @BeforeEach
+  public void startCli() throws IOException {
+    cli = new StubCli();
+    cli.handle("/percy/dom.js", exchange -> {
+      if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      exchange.getResponseHeaders().add("ETag", "\"v1\"");
+      StubCli.respond(exchange, 200, StubCli.DOM_JS);
+    });
+    cli.handle("/percy/snapshot", exchange -> {
+      bodies.add(StubCli.readBody(exchange));
+      lengths.add(String.valueOf(exchange.getRequestHeaders().getFirst("Content-Length")));
+      StubCli.succeed(exchange);
+    });
+    address = cli.start().address();
+  }
+
+  @AfterEach
+  public void stopCli() {
+    cli.stop();
+  }
+
+  @Test
+  public void readsTheHealthcheck() throws Exception {
+    TransportResponse response = transport.healthcheck(address, 2000);
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals(StubCli.CORE_VERSION, response.getHeader("x-percy-core-version"));
+  }
+
+  @Test
+  public void revalidatesDomScript() throws Exception {
+    TransportResponse fresh = transport.fetchDomScript(address, null);
+    assertEquals(200, fresh.getStatusCode());
+    assertEquals(StubCli.DOM_JS, fresh.getBody());
+
+    assertEquals(304, transport.fetchDomScript(address, fresh.getHeader("ETag")).getStatusCode());
+  }
+
+  @Test
+  public void streamsBodiesOfUnknownLength() throws Exception {
+    // Several times the chunk size, so the body is handed over in pieces
+    byte[] expected = bytes(300000);
+    TransportResponse response = transport.postSnapshot(address, out -> {
+      for (int i = 0; i < expected.length; i += 1000) { out.write(expected, i, Math.min(1000, expected.length - i)); }
+    });
+
+    assertEquals(200, response.getStatusCode());
+    assertArrayEquals(expected, bodies.get(0));
+  }
+
+  @Test
+  public void sendsBodiesOfKnownLength() throws Exception {
+    byte[] expected = bytes(100000);
+    TransportResponse response = transport.postSnapshot(address, new RequestBody() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException { out.write(expected); }
+
+      @Override
+      public long contentLength() { return expected.length; }
+    });
+
+    assertEquals(200, response.getStatusCode());
+    assertArrayEquals(expected, bodies.get(0));
+    assertEquals(String.valueOf(expected.length), lengths.get(0));
+  }
+
+  @Test
+  public void cancelsTheRequestWhenWritingTheBodyThrows() throws Exception {
+    assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      assertThrows(IllegalStateException.class, () -> transport.postSnapshot(address, out -> {
+        out.write(bytes(100000));
+        throw new IllegalStateException("encoding failed");
+      }));
+    });
+
+    // The half-written body never reaches the CLI, and the next one does
+    assertEquals(200, transport.postSnapshot(address, out -> out.write(bytes(10))).getStatusCode());
+    assertEquals(1, bodies.size());
+  }
+
+  @Test
+  public void failsWhenTheCliIsNotRunning() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) { port = socket.getLocalPort(); }
+
+    assertThrows(IOException.class,
+      () -> transport.postSnapshot("http://localhost:" + port, out -> out.write(bytes(200000))));
+  }
+
+  private static byte[] bytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) { bytes[i] = (byte) ('a' + i % 26); }
+    return bytes;
+  }
+}
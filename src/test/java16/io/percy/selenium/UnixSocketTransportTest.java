@@ -0,0 +1,178 @@
+package io.percy.selenium;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the Unix domain socket transport, against a stand-in for the Percy CLI
+ * listening on a socket file.
+ */
+public class UnixSocketTransportTest {
+  private final PercyTransport transport = new UnixSocketTransport();
+  private final List<byte[]> bodies = new CopyOnWriteArrayList<>();
+  private final List<Map<String, String>> requestHeaders = new CopyOnWriteArrayList<>();
+  private Path directory;
+  private ServerSocketChannel server;
+  private String address;
+
+  @BeforeEach
+  public void startServer(@TempDir Path cacheDir) throws IOException {
+    // Where dom.js is cached, instead of the user's cache directory
+    DomScriptCache.useDirectory(cacheDir);
+    directory = Files.createTempDirectory("percy-unix");
+    Path socket = directory.resolve("percy.sock");
+    server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(socket));
+    address = "unix://" + socket;
+
+    Thread acceptor = new Thread(() -> {
+      while (server.isOpen()) {
+        try (SocketChannel channel = server.accept()) {
+          handle(channel);
+        } catch (IOException ex) {
+          // Stopped, or the client went away
+        }
+      }
+    }, "percy-unix-stand-in");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  @AfterEach
+  public void stopServer() throws IOException {
+    server.close();
+    Files.deleteIfExists(directory.resolve("percy.sock"));
+    Files.deleteIfExists(directory);
+    DomScriptCache.useDirectory(null);
+  }
+
+  @Test
+  public void snapshotsOverASocketFile() throws Exception {
+    Percy percy = new Percy(new StubDriver(), address, null);
+
+    percy.snapshot("over a socket");
+
+    assertEquals(PercyState.ENABLED, percy.getState());
+    assertEquals(1, bodies.size());
+    assertTrue(new String(bodies.get(0), StandardCharsets.UTF_8).startsWith("{\"domSnapshot\":"));
+    assertEquals(1, percy.stats().getSnapshots());
+  }
+
+  @Test
+  public void sendsBodiesOfUnknownLengthChunked() throws Exception {
+    // Several times the chunk size
+    byte[] expected = bytes(300000);
+    TransportResponse response = transport.postSnapshot(address, out -> out.write(expected));
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals("{\"success\":true}", response.getBody());
+    assertEquals("chunked", requestHeaders.get(0).get("Transfer-Encoding"));
+    assertArrayEquals(expected, bodies.get(0));
+  }
+
+  @Test
+  public void sendsBodiesOfKnownLength() throws Exception {
+    byte[] expected = bytes(100000);
+    TransportResponse response = transport.postSnapshot(address, new RequestBody() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException { out.write(expected); }
+
+      @Override
+      public long contentLength() { return expected.length; }
+    });
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals(String.valueOf(expected.length), requestHeaders.get(0).get("Content-Length"));
+    assertArrayEquals(expected, bodies.get(0));
+  }
+
+  @Test
+  public void failsWhenNothingListens() {
+    assertThrows(IOException.class,
+      () -> transport.healthcheck("unix://" + directory.resolve("missing.sock"), 1000));
+  }
+
+  private void handle(SocketChannel channel) throws IOException {
+    InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+    String path = readLine(in).split(" ")[1];
+
+    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+      int colon = line.indexOf(':');
+      headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    if ("chunked".equals(headers.get("Transfer-Encoding"))) {
+      for (int size = Integer.parseInt(readLine(in), 16); size > 0; size = Integer.parseInt(readLine(in), 16)) {
+        body.write(in.readNBytes(size));
+        readLine(in);
+      }
+      readLine(in);
+    } else if (headers.containsKey("Content-Length")) {
+      body.write(in.readNBytes(Integer.parseInt(headers.get("Content-Length"))));
+    }
+
+    OutputStream out = Channels.newOutputStream(channel);
+    switch (path) {
+      case "/percy/healthcheck":
+        // A core version no real CLI reports
+        respond(out, "x-percy-core-version: " + StubCli.CORE_VERSION + "\r\n", "{\"success\":true}");
+        break;
+      case "/percy/dom.js":
+        respond(out, "", StubCli.DOM_JS);
+        break;
+      default:
+        requestHeaders.add(headers);
+        bodies.add(body.toByteArray());
+        respond(out, "", "{\"success\":true}");
+    }
+  }
+
+  private static void respond(OutputStream out, String headers, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    out.write(("HTTP/1.1 200 OK\r\n" + headers + "Content-Length: " + bytes.length + "\r\n\r\n")
+      .getBytes(StandardCharsets.ISO_8859_1));
+    out.write(bytes);
+    out.flush();
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int c = in.read(); c != '\n' && c != -1; c = in.read()) {
+      if (c != '\r') { line.append((char) c); }
+    }
+    return line.toString();
+  }
+
+  private static byte[] bytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) { bytes[i] = (byte) ('a' + i % 26); }
+    return bytes;
+  }
+}